@@ -0,0 +1,280 @@
+import lombok.Getter;
+import lombok.Setter;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Primitive floor backend & its footprint benchmark. Uses the classes of Parking Lot LLD.java (ParkingSpotType,
+OccupancyCounters, SpotCompatibility, ParkingFloor), compile the two files together:
+javac -cp lombok.jar "Parking Lot LLD.java" "Parking Lot Compact Floor.java"
+*/
+
+/*
+Alternative ParkingFloor backend for very large (city wide) deployments, where one object per ParkingSpot (with its
+Strings, Deque node, Map entry...) costs too much heap and GC time.
+
+Spots are int indexes 0..capacity-1 into primitive arrays (struct of arrays):
+- spotTypes  : byte per spot, ParkingSpotType.ordinal()
+- occupied   : occupancy bitmap, 1 bit per spot
+- nextFree   : int per spot, link of the free list the spot is in
+So a spot costs ~5 bytes, and allocate / vacate create no garbage at all.
+
+Free spots of every ParkingSpotType are a lock-free stack (Treiber stack) threaded through nextFree. Head of a stack is
+(stamp << 32 | index + 1) in one long, the stamp changes on every push/pop so a CAS can't succeed on a stale head (ABA).
+Vacate clears the occupancy bit with CAS, so only one of two concurrent vacates of the same spot frees it.
+Counters are the same OccupancyCounters as ParkingFloor, so the O(1) queries and the roll up into a lot work the same.
+
+Same operations as ParkingFloor, with int spots instead of ParkingSpot objects: SpotCompatibility chains (overflow to
+bigger spots) and drain() work the same way. Spot ids are left to the caller (e.g. floorId + "-" + index), they are
+not stored here. Spots are added once while provisioning; capacity is fixed.
+It is a standalone backend (e.g. a city wide occupancy service): a ParkingLot hands out ParkingSpot objects to its
+panels, tickets & journal, so a CompactParkingFloor can't be added to a ParkingLot. That's why it lives in its own file
+& not in Parking Lot LLD.java, next to the benchmark that compares it with ParkingFloor.
+*/
+class CompactParkingFloor {
+    private static final long INDEX_MASK = 0xFFFFFFFFL;
+    private static final ParkingSpotType[] SPOT_TYPES = ParkingSpotType.values(); // values() clones on every call
+
+    @Getter
+    private final String floorId;
+    private final byte[] spotTypes;
+    private final int[] nextFree;
+    private final AtomicLongArray occupied;
+    private final AtomicLongArray freeListHeads = new AtomicLongArray(ParkingSpotType.values().length);
+    @Getter
+    private final OccupancyCounters occupancy = new OccupancyCounters();
+    private int spotCount;
+    @Getter
+    @Setter
+    private volatile SpotCompatibility spotCompatibility = SpotCompatibility.STRICT;
+    @Getter
+    private volatile boolean draining; // No new allocations, see drain()
+
+    public CompactParkingFloor(String floorId, int capacity) {
+        this.floorId = floorId;
+        this.spotTypes = new byte[capacity];
+        this.nextFree = new int[capacity];
+        this.occupied = new AtomicLongArray((capacity + 63) >>> 6);
+    }
+
+    // Returns the index of the new spot
+    public synchronized int addSpot(ParkingSpotType parkingSpotType) {
+        if (spotCount == spotTypes.length)
+            throw new IllegalStateException("Floor " + floorId + " is at capacity " + spotTypes.length);
+        int spot = spotCount++;
+        spotTypes[spot] = (byte) parkingSpotType.ordinal();
+        push(parkingSpotType.ordinal(), spot);
+        occupancy.spotAdded(parkingSpotType);
+        return spot;
+    }
+
+    public int getSpotCount() {
+        return spotCount;
+    }
+
+    // Index of the allocated spot, -1 when no compatible spot is free. Types are tried like ParkingFloor.getSpot().
+    public int getSpot(VehicleType vehicleType) {
+        SpotCompatibility compatibility = spotCompatibility;
+        int candidates = occupancy.getNonEmptyMask() & compatibility.getCompatibleMask(vehicleType);
+        while (candidates != 0) {
+            ParkingSpotType parkingSpotType = compatibility.bestSpotType(vehicleType, candidates);
+            int spot = pop(parkingSpotType.ordinal());
+            if (spot >= 0) {
+                if (draining) { // Popped just as drain() started, the spot is retired instead
+                    occupancy.spotRetired(parkingSpotType);
+                    return -1;
+                }
+                setOccupied(spot, true);
+                occupancy.spotAllocated(parkingSpotType);
+                return spot;
+            }
+            candidates &= ~(1 << parkingSpotType.ordinal());
+        }
+        return -1;
+    }
+
+    // false when the spot was not occupied (e.g. vacated twice)
+    public boolean vacateSpot(int spot) {
+        if (!setOccupied(spot, false))
+            return false;
+        ParkingSpotType parkingSpotType = getSpotType(spot);
+        if (draining) {
+            occupancy.usedSpotRetired(parkingSpotType);
+            return true;
+        }
+        push(spotTypes[spot], spot);
+        occupancy.spotVacated(parkingSpotType);
+        if (draining) // drain() swept this stack before the push, sweep it again
+            retireFree(parkingSpotType);
+        return true;
+    }
+
+    // Same as ParkingFloor.drain(): no new allocations, free spots retired now & used ones as they are vacated
+    public int drain() {
+        draining = true;
+        int retired = 0;
+        for (ParkingSpotType parkingSpotType : SPOT_TYPES)
+            retired += retireFree(parkingSpotType);
+        return retired;
+    }
+
+    public boolean isDrained() {
+        return draining && occupancy.getTotalUsed() == 0 && occupancy.getTotalFree() == 0;
+    }
+
+    private int retireFree(ParkingSpotType parkingSpotType) {
+        int retired = 0;
+        while (pop(parkingSpotType.ordinal()) >= 0) {
+            occupancy.spotRetired(parkingSpotType);
+            retired++;
+        }
+        return retired;
+    }
+
+    public boolean isOccupied(int spot) {
+        return (occupied.get(spot >>> 6) & (1L << spot)) != 0;
+    }
+
+    public ParkingSpotType getSpotType(int spot) {
+        return SPOT_TYPES[spotTypes[spot]];
+    }
+
+    public boolean canPark(VehicleType vehicleType) {
+        return (occupancy.getNonEmptyMask() & spotCompatibility.getCompatibleMask(vehicleType)) != 0;
+    }
+
+    public boolean canPark(ParkingSpotType parkingSpotType) {
+        return occupancy.getFreeCount(parkingSpotType) > 0;
+    }
+
+    public boolean isFloorFull() {
+        return occupancy.getTotalFree() == 0;
+    }
+
+    public int getFreeSpotCount(ParkingSpotType parkingSpotType) {
+        return occupancy.getFreeCount(parkingSpotType);
+    }
+
+    public int getUsedSpotCount(ParkingSpotType parkingSpotType) {
+        return occupancy.getUsedCount(parkingSpotType);
+    }
+
+    // Returns false if the bit already had that value
+    private boolean setOccupied(int spot, boolean value) {
+        int word = spot >>> 6;
+        long bit = 1L << spot;
+        while (true) {
+            long current = occupied.get(word);
+            if (((current & bit) != 0) == value)
+                return false;
+            if (occupied.compareAndSet(word, current, value ? current | bit : current & ~bit))
+                return true;
+        }
+    }
+
+    private void push(int type, int spot) {
+        while (true) {
+            long head = freeListHeads.get(type);
+            nextFree[spot] = (int) (head & INDEX_MASK) - 1;
+            long newHead = (((head >>> 32) + 1) << 32) | (spot + 1);
+            if (freeListHeads.compareAndSet(type, head, newHead))
+                return;
+        }
+    }
+
+    private int pop(int type) {
+        while (true) {
+            long head = freeListHeads.get(type);
+            int spot = (int) (head & INDEX_MASK) - 1;
+            if (spot < 0)
+                return -1;
+            long newHead = (((head >>> 32) + 1) << 32) | (nextFree[spot] + 1);
+            if (freeListHeads.compareAndSet(type, head, newHead))
+                return spot;
+        }
+    }
+}
+
+/************************************************** Benchmarks *********************************************************/
+
+/*
+Heap footprint & GC cost of ParkingFloor (object model) vs CompactParkingFloor (primitive arrays).
+1. Builds a floor with N spots and reports the retained heap per spot.
+2. Runs allocate + vacate churn on it and reports throughput plus GC count & time during the churn.
+Run with a fixed heap for stable numbers: java -Xms2g -Xmx2g FloorFootprintBenchmark [spots] [churnOps]
+*/
+class FloorFootprintBenchmark {
+    private static final VehicleType[] VEHICLE_TYPES = {VehicleType.CAR, VehicleType.MOTORBIKE, VehicleType.TRUCK};
+
+    public static void main(String[] args) {
+        int spots = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int churnOps = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+
+        long before = usedHeap();
+        ParkingFloor parkingFloor = new ParkingFloor("object");
+        for (int i = 0; i < spots; i++)
+            parkingFloor.addSpot(ParkingSpot.of("s" + i, spotType(i)));
+        report("object", spots, usedHeap() - before);
+        churn("object", churnOps, () -> {
+            ParkingSpot parkingSpot = parkingFloor.getSpot(VEHICLE_TYPES[0]);
+            if (parkingSpot != null)
+                parkingFloor.vacateSpot(parkingSpot.getParkingSpotId());
+        });
+
+        before = usedHeap();
+        CompactParkingFloor compactFloor = new CompactParkingFloor("compact", spots);
+        for (int i = 0; i < spots; i++)
+            compactFloor.addSpot(spotType(i));
+        report("compact", spots, usedHeap() - before);
+        churn("compact", churnOps, () -> {
+            int spot = compactFloor.getSpot(VEHICLE_TYPES[0]);
+            if (spot >= 0)
+                compactFloor.vacateSpot(spot);
+        });
+        // Also keeps both floors reachable until both measurements are done
+        System.out.println("free COMPACT spots: " + parkingFloor.getFreeSpotCount(ParkingSpotType.COMPACT)
+                + " / " + compactFloor.getFreeSpotCount(ParkingSpotType.COMPACT));
+    }
+
+    private static ParkingSpotType spotType(int i) {
+        return ParkingFloor.getSpotTypeForVehicle(VEHICLE_TYPES[i % VEHICLE_TYPES.length]);
+    }
+
+    private static void churn(String name, int ops, Runnable operation) {
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++)
+            operation.run();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-8s churn: ns/op=%d gc count=%d gc ms=%d%n", name, elapsed / ops,
+                gcCount() - gcCount, gcMillis() - gcMillis);
+    }
+
+    private static void report(String name, int spots, long bytes) {
+        System.out.printf("%-8s heap: %d MB for %d spots, %d bytes/spot%n", name, bytes >> 20, spots, bytes / spots);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+}
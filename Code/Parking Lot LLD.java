@@ -1,12 +1,58 @@
 import lombok.Getter;
 import lombok.Setter;
 
-import java.time.Duration;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.*;
 
 import lombok.AllArgsConstructor;
 import java.time.LocalDateTime;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
 
 /************************************************** Vehicle ***********************************************************/
 
@@ -70,10 +116,13 @@ abstract class ParkingSpot {
     private boolean isFree;
     private ParkingSpotType parkingSpotType;
     private String assignedVehicleId;
+    // EntrancePanel id -> distance of this spot from that entrance. Used by NearestEntranceAllocationStrategy.
+    private final Map<String, Integer> entranceDistances = new HashMap<>();
 
     public ParkingSpot(String parkingSpotId, ParkingSpotType parkingSpotType) {
         this.parkingSpotId = parkingSpotId;
         this.parkingSpotType = parkingSpotType;
+        this.isFree = true;
     }
 
     public void assignVehicleToSpot(String vehicleId) {
@@ -85,6 +134,30 @@ abstract class ParkingSpot {
         this.isFree = true;
         this.assignedVehicleId = null;
     }
+
+    public void setDistanceFromEntrance(String entranceId, int distance) {
+        entranceDistances.put(entranceId, distance);
+    }
+
+    // Spots with unknown distance go to the back
+    public int getDistanceFromEntrance(String entranceId) {
+        return entranceDistances.getOrDefault(entranceId, Integer.MAX_VALUE);
+    }
+
+    public static ParkingSpot of(String parkingSpotId, ParkingSpotType parkingSpotType) {
+        switch (parkingSpotType) {
+            case HANDICAPPED:
+                return new HandicappedParkingSpot(parkingSpotId);
+            case COMPACT:
+                return new CompactParkingSpot(parkingSpotId);
+            case LARGE:
+                return new LargeParkingSpot(parkingSpotId);
+            case MOTORBIKE:
+                return new MotorbikeParkingSpot(parkingSpotId);
+            default:
+                return new ElectricParkingSpot(parkingSpotId);
+        }
+    }
 }
 
 class HandicappedParkingSpot extends ParkingSpot {
@@ -117,14 +190,648 @@ class ElectricParkingSpot extends ParkingSpot {
     }
 }
 
+/*
+Free & used parking spot counters per ParkingSpotType.
+Every ParkingFloor keeps one OccupancyCounters, and the ParkingLot keeps one that aggregates all of its floors (parent).
+Counters are updated incrementally when a spot is added, allocated or vacated, so questions like "is the lot full?"
+or "can a CAR park?" are O(1) and allocate nothing.
+Earlier these questions called size() on ConcurrentLinkedDeque, and that walks the whole deque on every call.
+
+nonEmptyMask has bit ParkingSpotType.ordinal() set while that type has a free spot (see SpotCompatibility). It only
+changes when a free count goes 0 <-> 1. The bit is written from the count & the count is read again after the write,
+so two gates racing on the last spot (one freeing, one taking) can't leave a stale bit behind.
+
+Spots in an entrance lease (SpotLeaseManager) are used for the claims (out of the free pool, not in nonEmptyMask) but
+no vehicle is on them. They are also counted as leased, and the availability views (getAvailableCount(),
+getOccupiedCount(), getAvailableMask()) count them as free.
+*/
+class OccupancyCounters {
+    private static final int SPOT_TYPES = ParkingSpotType.values().length;
+
+    private final AtomicIntegerArray freeSpots = new AtomicIntegerArray(SPOT_TYPES); // Indexed by ParkingSpotType.ordinal()
+    private final AtomicIntegerArray usedSpots = new AtomicIntegerArray(SPOT_TYPES);
+    private final AtomicInteger totalFreeSpots = new AtomicInteger();
+    private final AtomicInteger totalUsedSpots = new AtomicInteger();
+    private final AtomicIntegerArray leasedSpots = new AtomicIntegerArray(SPOT_TYPES); // Part of usedSpots
+    private final AtomicInteger totalLeasedSpots = new AtomicInteger();
+    private final AtomicInteger nonEmptyMask = new AtomicInteger();
+    private volatile OccupancyCounters parent; // ParkingLot counters, once the floor is added to a lot
+    private volatile FreeCountFeed.Source feedSource; // Once a display board subscribes, see FreeCountFeed
+
+    public void spotAdded(ParkingSpotType parkingSpotType) {
+        freeSpotsChanged(parkingSpotType.ordinal(), freeSpots.incrementAndGet(parkingSpotType.ordinal()));
+        totalFreeSpots.incrementAndGet();
+        OccupancyCounters parent = this.parent;
+        if (parent != null)
+            parent.spotAdded(parkingSpotType);
+    }
+
+    public void spotAllocated(ParkingSpotType parkingSpotType) {
+        spotsAllocated(parkingSpotType, 1);
+    }
+
+    // Batch claims (ParkingFloor.getSpots()) move the counters once per batch, not once per spot
+    public void spotsAllocated(ParkingSpotType parkingSpotType, int count) {
+        freeSpotsChanged(parkingSpotType.ordinal(), freeSpots.addAndGet(parkingSpotType.ordinal(), -count));
+        usedSpots.addAndGet(parkingSpotType.ordinal(), count);
+        totalFreeSpots.addAndGet(-count);
+        totalUsedSpots.addAndGet(count);
+        OccupancyCounters parent = this.parent;
+        if (parent != null)
+            parent.spotsAllocated(parkingSpotType, count);
+    }
+
+    public void spotVacated(ParkingSpotType parkingSpotType) {
+        usedSpots.decrementAndGet(parkingSpotType.ordinal());
+        freeSpotsChanged(parkingSpotType.ordinal(), freeSpots.incrementAndGet(parkingSpotType.ordinal()));
+        totalUsedSpots.decrementAndGet();
+        totalFreeSpots.incrementAndGet();
+        OccupancyCounters parent = this.parent;
+        if (parent != null)
+            parent.spotVacated(parkingSpotType);
+    }
+
+    // Free spot taken out of service (floor is draining, see ParkingFloor.drain()), it is not free & not used anymore
+    public void spotRetired(ParkingSpotType parkingSpotType) {
+        freeSpotsChanged(parkingSpotType.ordinal(), freeSpots.decrementAndGet(parkingSpotType.ordinal()));
+        totalFreeSpots.decrementAndGet();
+        OccupancyCounters parent = this.parent;
+        if (parent != null)
+            parent.spotRetired(parkingSpotType);
+    }
+
+    // Used spot of a draining floor was vacated: it leaves the used count without coming back as free
+    public void usedSpotRetired(ParkingSpotType parkingSpotType) {
+        usedSpots.decrementAndGet(parkingSpotType.ordinal());
+        totalUsedSpots.decrementAndGet();
+        OccupancyCounters parent = this.parent;
+        if (parent != null)
+            parent.usedSpotRetired(parkingSpotType);
+    }
+
+    // Used spot put in an entrance lease, the spot stays used
+    public void spotLeased(ParkingSpotType parkingSpotType) {
+        leasedChanged(parkingSpotType.ordinal(), 1);
+    }
+
+    // Leased spot handed to a vehicle, or given back to the lot (vacated right after)
+    public void spotUnleased(ParkingSpotType parkingSpotType) {
+        leasedChanged(parkingSpotType.ordinal(), -1);
+    }
+
+    private void leasedChanged(int spotType, int delta) {
+        leasedSpots.addAndGet(spotType, delta);
+        totalLeasedSpots.addAndGet(delta);
+        markFeedDirty();
+        OccupancyCounters parent = this.parent;
+        if (parent != null)
+            parent.leasedChanged(spotType, delta);
+    }
+
+    // Rolls the counts collected so far into the parent (ParkingLot) and keeps it up to date from now on
+    public void attachTo(OccupancyCounters parent) {
+        for (int i = 0; i < SPOT_TYPES; i++) {
+            parent.syncNonEmpty(i, parent.freeSpots.addAndGet(i, freeSpots.get(i)));
+            parent.usedSpots.addAndGet(i, usedSpots.get(i));
+            parent.leasedSpots.addAndGet(i, leasedSpots.get(i));
+        }
+        parent.totalFreeSpots.addAndGet(totalFreeSpots.get());
+        parent.totalUsedSpots.addAndGet(totalUsedSpots.get());
+        parent.totalLeasedSpots.addAndGet(totalLeasedSpots.get());
+        this.parent = parent;
+        parent.markFeedDirty();
+    }
+
+    // Floor removed from its lot. Only once it's drained, then it adds nothing to the parent counts anymore.
+    public void detach() {
+        this.parent = null;
+    }
+
+    private void freeSpotsChanged(int spotType, int freeCount) {
+        if (freeCount <= 1)
+            syncNonEmpty(spotType, freeCount);
+        markFeedDirty();
+    }
+
+    // One volatile read when no board watches these counts
+    private void markFeedDirty() {
+        FreeCountFeed.Source feedSource = this.feedSource;
+        if (feedSource != null)
+            feedSource.markDirty();
+    }
+
+    // The counts are published by one feed only, the first one a board subscribed through
+    public synchronized FreeCountFeed.Source feedSource(FreeCountFeed feed, String sourceId) {
+        if (feedSource == null)
+            feedSource = feed.newSource(sourceId, this);
+        else if (feedSource.getFeed() != feed)
+            throw new IllegalStateException("Free counts of " + sourceId + " are published by another feed");
+        return feedSource;
+    }
+
+    private void syncNonEmpty(int spotType, int freeCount) {
+        int bit = 1 << spotType;
+        while (true) {
+            boolean nonEmpty = freeCount > 0;
+            int mask = nonEmptyMask.get();
+            int updated = nonEmpty ? mask | bit : mask & ~bit;
+            if (mask != updated && !nonEmptyMask.compareAndSet(mask, updated))
+                continue;
+            freeCount = freeSpots.get(spotType);
+            if ((freeCount > 0) == nonEmpty)
+                return;
+        }
+    }
+
+    public int getFreeCount(ParkingSpotType parkingSpotType) {
+        return freeSpots.get(parkingSpotType.ordinal());
+    }
+
+    public int getUsedCount(ParkingSpotType parkingSpotType) {
+        return usedSpots.get(parkingSpotType.ordinal());
+    }
+
+    public int getNonEmptyMask() {
+        return nonEmptyMask.get();
+    }
+
+    public int getTotalFree() {
+        return totalFreeSpots.get();
+    }
+
+    public int getTotalUsed() {
+        return totalUsedSpots.get();
+    }
+
+    public int getLeasedCount(ParkingSpotType parkingSpotType) {
+        return leasedSpots.get(parkingSpotType.ordinal());
+    }
+
+    public int getTotalLeased() {
+        return totalLeasedSpots.get();
+    }
+
+    // Free or leased, what a driver can still get
+    public int getAvailableCount(ParkingSpotType parkingSpotType) {
+        return freeSpots.get(parkingSpotType.ordinal()) + leasedSpots.get(parkingSpotType.ordinal());
+    }
+
+    // With a vehicle (or a reservation holder) on it
+    public int getOccupiedCount(ParkingSpotType parkingSpotType) {
+        return usedSpots.get(parkingSpotType.ordinal()) - leasedSpots.get(parkingSpotType.ordinal());
+    }
+
+    public int getTotalAvailable() {
+        return totalFreeSpots.get() + totalLeasedSpots.get();
+    }
+
+    public int getTotalOccupied() {
+        return totalUsedSpots.get() - totalLeasedSpots.get();
+    }
+
+    // nonEmptyMask plus the types with a leased spot. Only one volatile read more when nothing is leased.
+    public int getAvailableMask() {
+        int mask = nonEmptyMask.get();
+        if (totalLeasedSpots.get() == 0)
+            return mask;
+        for (int i = 0; i < SPOT_TYPES; i++)
+            if (leasedSpots.get(i) > 0)
+                mask |= 1 << i;
+        return mask;
+    }
+}
+
+/*
+Which ParkingSpotTypes a VehicleType may use, in order of preference (compatibility chain), e.g.
+CAR -> COMPACT -> LARGE : a car takes a COMPACT spot, and a LARGE one only when no COMPACT spot is free.
+STRICT is one type per vehicle (ParkingFloor.getSpotTypeForVehicle()), that is the default of every lot.
+withOverflow() lets small vehicles overflow into bigger spots instead of being refused while those sit empty.
+
+Chains are precompiled into lookup tables indexed by VehicleType.ordinal():
+- compatibleMasks[v]      : bit of every ParkingSpotType in the chain of v
+- bestSpotType[v][mask]   : first type of the chain of v whose bit is set in mask, -1 if none
+With the nonEmptyMask of a floor or of the lot (OccupancyCounters), the best type with a free spot is one table read,
+instead of trying the deque of every type in the chain in turn.
+*/
+final class SpotCompatibility {
+    private static final ParkingSpotType[] SPOT_TYPES = ParkingSpotType.values(); // values() clones on every call
+    private static final int MASKS = 1 << SPOT_TYPES.length;
+
+    public static final SpotCompatibility STRICT = new SpotCompatibility(new EnumMap<>(VehicleType.class));
+
+    private final Map<VehicleType, List<ParkingSpotType>> chains = new EnumMap<>(VehicleType.class);
+    private final int[] compatibleMasks = new int[VehicleType.values().length];
+    private final byte[][] bestSpotType = new byte[VehicleType.values().length][MASKS];
+
+    // VehicleTypes missing from chains keep their one ParkingSpotType
+    public SpotCompatibility(Map<VehicleType, List<ParkingSpotType>> chains) {
+        for (VehicleType vehicleType : VehicleType.values()) {
+            List<ParkingSpotType> chain = chains.getOrDefault(vehicleType,
+                    Collections.singletonList(ParkingFloor.getSpotTypeForVehicle(vehicleType)));
+            this.chains.put(vehicleType, Collections.unmodifiableList(new ArrayList<>(chain)));
+            int v = vehicleType.ordinal();
+            for (ParkingSpotType parkingSpotType : chain)
+                compatibleMasks[v] |= 1 << parkingSpotType.ordinal();
+            for (int mask = 0; mask < MASKS; mask++) {
+                bestSpotType[v][mask] = -1;
+                for (ParkingSpotType parkingSpotType : chain) {
+                    if ((mask & (1 << parkingSpotType.ordinal())) != 0) {
+                        bestSpotType[v][mask] = (byte) parkingSpotType.ordinal();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public static SpotCompatibility withOverflow() {
+        Map<VehicleType, List<ParkingSpotType>> chains = new EnumMap<>(VehicleType.class);
+        chains.put(VehicleType.MOTORBIKE, Arrays.asList(ParkingSpotType.MOTORBIKE, ParkingSpotType.COMPACT));
+        chains.put(VehicleType.CAR, Arrays.asList(ParkingSpotType.COMPACT, ParkingSpotType.LARGE));
+        chains.put(VehicleType.ELECTRIC,
+                Arrays.asList(ParkingSpotType.ELECTRIC, ParkingSpotType.COMPACT, ParkingSpotType.LARGE));
+        return new SpotCompatibility(chains);
+    }
+
+    public List<ParkingSpotType> getChain(VehicleType vehicleType) {
+        return chains.get(vehicleType);
+    }
+
+    public int getCompatibleMask(VehicleType vehicleType) {
+        return compatibleMasks[vehicleType.ordinal()];
+    }
+
+    // null when no type of the chain is in nonEmptyMask
+    public ParkingSpotType bestSpotType(VehicleType vehicleType, int nonEmptyMask) {
+        int spotType = bestSpotType[vehicleType.ordinal()][nonEmptyMask & (MASKS - 1)];
+        return spotType < 0 ? null : SPOT_TYPES[spotType];
+    }
+}
+
+/*
+Parking strategy of a floor: which free ParkingSpot is handed out next.
+A ParkingFloor owns exactly one strategy, and all the free spots of the floor live inside it.
+entranceId is the EntrancePanel the vehicle came in from, strategies that don't care about it ignore it (can be null).
+*/
+interface SpotAllocationStrategy {
+    void addSpot(ParkingSpot parkingSpot); // New free spot
+
+    ParkingSpot claim(ParkingSpotType parkingSpotType, String entranceId); // null when no spot of that type is free
+
+    // Claims up to count spots in one go, adds them to claimed and returns how many were claimed
+    default int claim(ParkingSpotType parkingSpotType, int count, String entranceId, List<ParkingSpot> claimed) {
+        int claimedCount = 0;
+        while (claimedCount < count) {
+            ParkingSpot parkingSpot = claim(parkingSpotType, entranceId);
+            if (parkingSpot == null)
+                break;
+            claimed.add(parkingSpot);
+            claimedCount++;
+        }
+        return claimedCount;
+    }
+
+    void release(ParkingSpot parkingSpot); // Vacated spot is free again
+
+    boolean remove(ParkingSpot parkingSpot); // Takes this exact free spot, false when it is not free. Used by recovery.
+
+    void forEachFreeSpot(Consumer<ParkingSpot> action);
+
+    default long getLockWaits() { // Claims that had to wait for a lock, 0 for lock-free strategies
+        return 0;
+    }
+}
+
+/*
+Default strategy: one ConcurrentLinkedDeque per ParkingSpotType.
+Every ParkingSpotType is its own independent stripe, a panel allocating a COMPACT spot never touches the deque that a
+panel allocating a LARGE spot is working on. poll() is a lock-free atomic claim.
+*/
+class DequeAllocationStrategy implements SpotAllocationStrategy {
+    @Getter
+    private final Map<ParkingSpotType, Deque<ParkingSpot>> parkingSpots = new EnumMap<>(ParkingSpotType.class);
+    // About ConcurrentLinkedDeque : https://www.geeksforgeeks.org/concurrentlinkeddeque-in-java-with-examples/
+
+    public DequeAllocationStrategy() {
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values())
+            parkingSpots.put(parkingSpotType, new ConcurrentLinkedDeque<>());
+    }
+
+    @Override
+    public void addSpot(ParkingSpot parkingSpot) {
+        parkingSpots.get(parkingSpot.getParkingSpotType()).addLast(parkingSpot);
+    }
+
+    @Override
+    public ParkingSpot claim(ParkingSpotType parkingSpotType, String entranceId) {
+        return parkingSpots.get(parkingSpotType).poll();
+    }
+
+    @Override
+    public void release(ParkingSpot parkingSpot) {
+        parkingSpots.get(parkingSpot.getParkingSpotType()).addFirst(parkingSpot);
+    }
+
+    // O(n) walk over the Deque, fine as it's only used by recovery
+    @Override
+    public boolean remove(ParkingSpot parkingSpot) {
+        return parkingSpots.get(parkingSpot.getParkingSpotType()).remove(parkingSpot);
+    }
+
+    @Override
+    public void forEachFreeSpot(Consumer<ParkingSpot> action) {
+        for (Deque<ParkingSpot> deque : parkingSpots.values())
+            deque.forEach(action);
+    }
+}
+
+/*
+Min heap of int slots ordered by an int key, with an index from slot to its position in the heap.
+The index is what lets us remove any slot (not only the top) in O(log n), which plain java.util.PriorityQueue can't do
+(its remove(Object) is O(n)). Not thread safe, callers lock around it.
+*/
+class IndexedMinHeap {
+    private int[] heap = new int[16];     // heap position -> slot
+    private int[] keys = new int[16];     // slot -> key
+    private int[] position = new int[16]; // slot -> heap position, -1 when slot is not in the heap
+    private int size;
+
+    public IndexedMinHeap() {
+        Arrays.fill(position, -1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int slot) {
+        return slot < position.length && position[slot] >= 0;
+    }
+
+    public void insert(int slot, int key) {
+        if (contains(slot))
+            return;
+        ensureSlotCapacity(slot);
+        if (size == heap.length)
+            heap = Arrays.copyOf(heap, size * 2);
+        keys[slot] = key;
+        heap[size] = slot;
+        position[slot] = size;
+        siftUp(size++);
+    }
+
+    // Removes & returns the slot with the smallest key, -1 when empty
+    public int poll() {
+        if (size == 0)
+            return -1;
+        int slot = heap[0];
+        remove(slot);
+        return slot;
+    }
+
+    public boolean remove(int slot) {
+        if (!contains(slot))
+            return false;
+        int index = position[slot];
+        int last = heap[--size];
+        position[slot] = -1;
+        if (index == size)
+            return true;
+        heap[index] = last;
+        position[last] = index;
+        siftDown(index);
+        siftUp(position[last]);
+        return true;
+    }
+
+    private void ensureSlotCapacity(int slot) {
+        if (slot < position.length)
+            return;
+        int newLength = Math.max(slot + 1, position.length * 2);
+        int oldLength = position.length;
+        position = Arrays.copyOf(position, newLength);
+        Arrays.fill(position, oldLength, newLength, -1);
+        keys = Arrays.copyOf(keys, newLength);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (keys[heap[parent]] <= keys[heap[index]])
+                break;
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && keys[heap[left]] < keys[heap[smallest]])
+                smallest = left;
+            if (right < size && keys[heap[right]] < keys[heap[smallest]])
+                smallest = right;
+            if (smallest == index)
+                return;
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int slotI = heap[i];
+        int slotJ = heap[j];
+        heap[i] = slotJ;
+        heap[j] = slotI;
+        position[slotJ] = i;
+        position[slotI] = j;
+    }
+}
+
+/*
+Nearest to entrance strategy, the MIN HEAP design described in ParkingFloor.
+For every ParkingSpotType we keep one IndexedMinHeap per entrance, ordered by ParkingSpot.getDistanceFromEntrance().
+Every heap holds exactly the free spots of that type, so "1 Set to save available parking spots" is the heaps themselves.
+- claim   : poll the heap of the entrance the vehicle came from, then remove the same spot from the other k-1 heaps.
+- release : insert the spot back in all the k heaps.
+Both are k log(n) [k = number of entrance, n = number of parking spot of the type].
+
+Heaps are not lock free, so every ParkingSpotType has its own lock (striped): panels allocating different
+ParkingSpotTypes never wait for each other. contendedClaims counts the claims that had to wait for the lock.
+Distances must be set on the ParkingSpot before the spot is added to the floor.
+*/
+class NearestEntranceAllocationStrategy implements SpotAllocationStrategy {
+    @Getter
+    private final List<String> entranceIds;
+    private final Map<ParkingSpotType, SpotHeaps> spotHeaps = new EnumMap<>(ParkingSpotType.class);
+    @Getter
+    private final LongAdder contendedClaims = new LongAdder();
+
+    public NearestEntranceAllocationStrategy(List<String> entranceIds) {
+        this.entranceIds = new ArrayList<>(entranceIds);
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values())
+            spotHeaps.put(parkingSpotType, new SpotHeaps(this.entranceIds));
+    }
+
+    @Override
+    public long getLockWaits() {
+        return contendedClaims.sum();
+    }
+
+    @Override
+    public void addSpot(ParkingSpot parkingSpot) {
+        release(parkingSpot);
+    }
+
+    @Override
+    public ParkingSpot claim(ParkingSpotType parkingSpotType, String entranceId) {
+        SpotHeaps heaps = lock(parkingSpotType);
+        try {
+            return heaps.claimNearest(entranceId);
+        } finally {
+            heaps.lock.unlock();
+        }
+    }
+
+    // Batch claim takes the lock once for the whole batch
+    @Override
+    public int claim(ParkingSpotType parkingSpotType, int count, String entranceId, List<ParkingSpot> claimed) {
+        SpotHeaps heaps = lock(parkingSpotType);
+        try {
+            int claimedCount = 0;
+            while (claimedCount < count) {
+                ParkingSpot parkingSpot = heaps.claimNearest(entranceId);
+                if (parkingSpot == null)
+                    break;
+                claimed.add(parkingSpot);
+                claimedCount++;
+            }
+            return claimedCount;
+        } finally {
+            heaps.lock.unlock();
+        }
+    }
+
+    private SpotHeaps lock(ParkingSpotType parkingSpotType) {
+        SpotHeaps heaps = spotHeaps.get(parkingSpotType);
+        if (!heaps.lock.tryLock()) {
+            contendedClaims.increment();
+            heaps.lock.lock();
+        }
+        return heaps;
+    }
+
+    @Override
+    public void release(ParkingSpot parkingSpot) {
+        SpotHeaps heaps = spotHeaps.get(parkingSpot.getParkingSpotType());
+        heaps.lock.lock();
+        try {
+            int slot = heaps.slotOf(parkingSpot);
+            for (int i = 0; i < heaps.heaps.length; i++)
+                heaps.heaps[i].insert(slot, parkingSpot.getDistanceFromEntrance(entranceIds.get(i)));
+        } finally {
+            heaps.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(ParkingSpot parkingSpot) {
+        SpotHeaps heaps = lock(parkingSpot.getParkingSpotType());
+        try {
+            Integer slot = heaps.slots.get(parkingSpot);
+            if (slot == null || !heaps.heaps[0].contains(slot))
+                return false;
+            for (IndexedMinHeap heap : heaps.heaps)
+                heap.remove(slot);
+            return true;
+        } finally {
+            heaps.lock.unlock();
+        }
+    }
+
+    @Override
+    public void forEachFreeSpot(Consumer<ParkingSpot> action) {
+        for (SpotHeaps heaps : spotHeaps.values()) {
+            List<ParkingSpot> free = new ArrayList<>();
+            heaps.lock.lock();
+            try {
+                for (int slot = 0; slot < heaps.spots.size(); slot++) {
+                    if (heaps.heaps[0].contains(slot))
+                        free.add(heaps.spots.get(slot));
+                }
+            } finally {
+                heaps.lock.unlock();
+            }
+            free.forEach(action);
+        }
+    }
+
+    // Heaps of one ParkingSpotType. Spots get a dense int slot the first time they are seen, heaps work on slots.
+    private static class SpotHeaps {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final IndexedMinHeap[] heaps;
+        private final Map<String, IndexedMinHeap> heapsByEntrance = new HashMap<>();
+        private final List<ParkingSpot> spots = new ArrayList<>(); // slot -> ParkingSpot
+        private final Map<ParkingSpot, Integer> slots = new IdentityHashMap<>(); // ParkingSpot -> slot
+
+        private SpotHeaps(List<String> entranceIds) {
+            if (entranceIds.isEmpty())
+                throw new IllegalArgumentException("At least one entrance is needed");
+            heaps = new IndexedMinHeap[entranceIds.size()];
+            for (int i = 0; i < heaps.length; i++) {
+                heaps[i] = new IndexedMinHeap();
+                heapsByEntrance.put(entranceIds.get(i), heaps[i]);
+            }
+        }
+
+        // Caller holds the lock
+        private ParkingSpot claimNearest(String entranceId) {
+            // Unknown (or no) entrance: fall back to the heap of the first entrance
+            IndexedMinHeap entranceHeap = heapsByEntrance.getOrDefault(entranceId, heaps[0]);
+            int slot = entranceHeap.poll();
+            if (slot < 0)
+                return null;
+            for (IndexedMinHeap heap : heaps)
+                heap.remove(slot);
+            return spots.get(slot);
+        }
+
+        private int slotOf(ParkingSpot parkingSpot) {
+            Integer slot = slots.get(parkingSpot);
+            if (slot == null) {
+                slot = spots.size();
+                spots.add(parkingSpot);
+                slots.put(parkingSpot, slot);
+            }
+            return slot;
+        }
+    }
+}
+
 class ParkingFloor {
     @Getter
     @Setter
     private String floorId;
 
     @Getter
-    private Map<ParkingSpotType, Deque<ParkingSpot>> parkingSpots = new HashMap<>(); // Why Deque?!
-    private Map<String, ParkingSpot> usedParkingSpots = new HashMap<>(); // Implements as a Map and not list, as get operation in Map is O(1)
+    private final SpotAllocationStrategy allocationStrategy; // Default is DequeAllocationStrategy. Why Deque?!
+    // Implements as a Map and not list, as get operation in Map is O(1).
+    // Entry and exit panels change this map concurrently, hence ConcurrentHashMap and not HashMap.
+    private final Map<String, ParkingSpot> usedParkingSpots = new ConcurrentHashMap<>();
+    // Every spot ever added, in the order it was added. Iteration sees each spot exactly once, even while spots move
+    // between the strategy and usedParkingSpots.
+    private final Queue<ParkingSpot> allParkingSpots = new ConcurrentLinkedQueue<>();
+    @Getter
+    private final OccupancyCounters occupancy = new OccupancyCounters();
+    @Getter
+    private final AtomicLongArray spotMisses = new AtomicLongArray(VehicleType.values().length); // Vehicles refused
+    @Getter
+    @Setter
+    private volatile SpotCompatibility spotCompatibility = SpotCompatibility.STRICT; // Set by the lot it is added to
+    @Getter
+    private volatile boolean draining; // No new allocations, see drain()
 
     /*
     About Java deque: https://www.educative.io/edpresso/how-to-use-a-java-deque
@@ -143,36 +850,51 @@ class ParkingFloor {
     We will have:
     1. 4 Min heap, for 4 entrance. Heap will contains all the parking spot sorted in increasing order of the distance between the parking spot and the entrance.
     2. 1 Set to save available parking spots
-    3. 1 Set to save reserved parking spots
+    3. 1 Set to save reserved parking spots (reservations are in ParkingLot.reserveParkingSpot())
 
     We will have a map of minHeap with key as entrance Id. Map<EnteranceID, MinHeap>
     Think : how will Heap works with Sets when a vehicle entry and exits the Parking Lot.
     Computational complexity : k log (n) [k = number of entrance , n = number of parking lot]
 
+    This is implemented in NearestEntranceAllocationStrategy, pass it to the constructor to use it.
     */
 
     public ParkingFloor(String id) {
+        this(id, new DequeAllocationStrategy());
+    }
+
+    public ParkingFloor(String id, SpotAllocationStrategy allocationStrategy) {
         this.floorId = id;
-        parkingSpots.put(ParkingSpotType.HANDICAPPED, new ConcurrentLinkedDeque());
-        parkingSpots.put(ParkingSpotType.LARGE, new ConcurrentLinkedDeque());
-        parkingSpots.put(ParkingSpotType.COMPACT, new ConcurrentLinkedDeque());
-        parkingSpots.put(ParkingSpotType.ELECTRIC, new ConcurrentLinkedDeque());
-        parkingSpots.put(ParkingSpotType.MOTORBIKE, new ConcurrentLinkedDeque());
+        this.allocationStrategy = allocationStrategy;
+    }
+
+    // New ParkingSpots always go through here, so that the occupancy counters stay in sync with the strategy
+    public void addSpot(ParkingSpot parkingSpot) {
+        allParkingSpots.add(parkingSpot);
+        allocationStrategy.addSpot(parkingSpot);
+        occupancy.spotAdded(parkingSpot.getParkingSpotType());
     }
-    // About ConcurrentLinkedDeque : https://www.geeksforgeeks.org/concurrentlinkeddeque-in-java-with-examples/
 
-    // This Check isFloorFull() can be done in some easy way as well.
+    // Floor is full when no spot of any ParkingSpotType is free. O(1), read from the counters. Leased spots are free.
     public boolean isFloorFull() {
-        BitSet fullBitSet = new BitSet();
-        int bitIndex = 0;
-        for (Map.Entry<ParkingSpotType, Deque<ParkingSpot>> entry : parkingSpots.entrySet()) {
-            if (entry.getValue().size() == 0) {
-                fullBitSet.set(bitIndex++);
-            } else {
-                break;
-            }
-        }
-        return fullBitSet.cardinality() == fullBitSet.size();
+        return occupancy.getTotalAvailable() == 0;
+    }
+
+    public int getFreeSpotCount(ParkingSpotType parkingSpotType) {
+        return occupancy.getAvailableCount(parkingSpotType);
+    }
+
+    public int getUsedSpotCount(ParkingSpotType parkingSpotType) {
+        return occupancy.getOccupiedCount(parkingSpotType);
+    }
+
+    public int getSpotCount() {
+        return allParkingSpots.size();
+    }
+
+    // Visits every spot of the floor once, free as well as used, in the order they were added
+    public void forEachSpot(Consumer<ParkingSpot> action) {
+        allParkingSpots.forEach(action);
     }
 
     /*
@@ -194,518 +916,4853 @@ class ParkingFloor {
     }
 
     public boolean canPark(VehicleType vehicleType) {
-        return canPark(getSpotTypeForVehicle(vehicleType));
+        return (occupancy.getAvailableMask() & spotCompatibility.getCompatibleMask(vehicleType)) != 0;
     }
 
-    // return a Parking Spot (if present). Remove that from Deque and add in Map UsedParkingSpots
-    public synchronized ParkingSpot getSpot(VehicleType vehicleType) {
-        if (!canPark(getSpotTypeForVehicle(vehicleType)))
-            return null;
+    public ParkingSpot getSpot(VehicleType vehicleType) {
+        return getSpot(vehicleType, null);
+    }
+
+    /*
+    return a Parking Spot (if present). Remove that from the strategy and add in Map UsedParkingSpots
+
+    The floor is not locked. The strategy claim is atomic: it either hands a free spot to exactly one caller or returns
+    null when none is free (ConcurrentLinkedDeque.poll() for the default strategy). So the earlier "canPark() then
+    poll()" check is folded into the claim itself, and two panels can never walk away with the same ParkingSpot.
+
+    The ParkingSpotType comes from the compatibility chain of the vehicle & the non empty types of this floor (one
+    table read, see SpotCompatibility). The mask is only a hint: if another panel took the last spot of that type
+    first, the type is dropped from the candidates and the next type of the chain is tried.
+    */
+    public ParkingSpot getSpot(VehicleType vehicleType, String entranceId) {
+        SpotCompatibility compatibility = spotCompatibility;
+        int candidates = occupancy.getNonEmptyMask() & compatibility.getCompatibleMask(vehicleType);
+        while (candidates != 0) {
+            ParkingSpotType parkingSpotType = compatibility.bestSpotType(vehicleType, candidates);
+            ParkingSpot parkingSpot = claimSpot(parkingSpotType, entranceId);
+            if (parkingSpot != null)
+                return parkingSpot;
+            candidates &= ~(1 << parkingSpotType.ordinal());
+        }
+        recordMiss(vehicleType);
+        return null;
+    }
+
+    // The lot claims spots with claimSpot() and records its own refusals here, so a floor counts them either way
+    void recordMiss(VehicleType vehicleType) {
+        spotMisses.incrementAndGet(vehicleType.ordinal());
+    }
 
-        ParkingSpotType parkingSpotType = getSpotTypeForVehicle(vehicleType);
-        ParkingSpot parkingSpot = parkingSpots.get(parkingSpotType)
-                .poll();
+    // Free spot of exactly this ParkingSpotType, null when there is none
+    public ParkingSpot claimSpot(ParkingSpotType parkingSpotType, String entranceId) {
+        ParkingSpot parkingSpot = allocationStrategy.claim(parkingSpotType, entranceId);
+        if (parkingSpot == null)
+            return null;
+        if (draining) { // Gate read the mask just before drain(): the spot it got is retired, not handed out
+            occupancy.spotRetired(parkingSpotType);
+            return null;
+        }
 
         usedParkingSpots.put(parkingSpot.getParkingSpotId(), parkingSpot);
+        occupancy.spotAllocated(parkingSpot.getParkingSpotType());
         return parkingSpot;
     }
 
-    // Making a Parking-Spot free
+    public boolean isSpotUsed(ParkingSpot parkingSpot) {
+        return usedParkingSpots.get(parkingSpot.getParkingSpotId()) == parkingSpot;
+    }
+
+    // Takes a free spot out of the floor for good (its id is taken in the lot). false when the spot is not free.
+    boolean removeSpot(ParkingSpot parkingSpot) {
+        if (!allocationStrategy.remove(parkingSpot))
+            return false;
+        allParkingSpots.remove(parkingSpot);
+        occupancy.spotRetired(parkingSpot.getParkingSpotType());
+        return true;
+    }
+
+    // Takes this exact free spot (recovery knows which spot a ticket had). false when the spot is not free.
+    public boolean occupySpot(ParkingSpot parkingSpot) {
+        if (!allocationStrategy.remove(parkingSpot))
+            return false;
+        usedParkingSpots.put(parkingSpot.getParkingSpotId(), parkingSpot);
+        occupancy.spotAllocated(parkingSpot.getParkingSpotType());
+        return true;
+    }
+
+    // Batch version of getSpot(): claims up to count spots of a ParkingSpotType in one pass over the strategy
+    public int getSpots(ParkingSpotType parkingSpotType, int count, String entranceId, List<ParkingSpot> claimed) {
+        int from = claimed.size();
+        int claimedCount = allocationStrategy.claim(parkingSpotType, count, entranceId, claimed);
+        if (draining) {
+            for (int i = claimed.size() - 1; i >= from; i--)
+                retire(claimed.remove(i));
+            return 0;
+        }
+        for (int i = from; i < claimed.size(); i++) {
+            ParkingSpot parkingSpot = claimed.get(i);
+            usedParkingSpots.put(parkingSpot.getParkingSpotId(), parkingSpot);
+        }
+        if (claimedCount > 0)
+            occupancy.spotsAllocated(parkingSpotType, claimedCount);
+        return claimedCount;
+    }
+
+    /*
+    Making a Parking-Spot free
+    ConcurrentHashMap.remove() is atomic, so when two exit panels vacate the same spot only one of them gets the
+    ParkingSpot back, and the spot is returned to the strategy exactly once.
+    */
     public ParkingSpot vacateSpot(String parkingSpotId) {
         ParkingSpot parkingSpot = usedParkingSpots.remove(parkingSpotId);
         if (parkingSpot != null) {
             parkingSpot.freeSpot();
-            parkingSpots.get(parkingSpot.getParkingSpotType())
-                    .addFirst(parkingSpot);
+            if (draining) {
+                occupancy.usedSpotRetired(parkingSpot.getParkingSpotType());
+                return parkingSpot;
+            }
+            allocationStrategy.release(parkingSpot);
+            occupancy.spotVacated(parkingSpot.getParkingSpotType());
+            // drain() started while the spot was being released, and its sweep may have missed it
+            if (draining && allocationStrategy.remove(parkingSpot))
+                retire(parkingSpot);
             return parkingSpot;
         }
         return null;
     }
 
-    // Checking the Deque of specific ParkingSpotType is empty or not
-    public boolean canPark(ParkingSpotType parkingSpotType) {
-        return parkingSpots.get(parkingSpotType).size() > 0;
+    /*
+    Takes the floor out of service without stopping the gates: from now on no spot of this floor is handed out, free
+    spots are retired right away & used spots are retired as their vehicles leave. Once getUsedCount is 0 for every
+    type (isDrained()) the lot can drop the floor, see ParkingLot.removeParkingFloor().
+    The nonEmptyMask of the floor goes to 0 with the sweep, so lot & gates skip the floor on their own. A gate that
+    read the mask just before the flag was set gets null from claimSpot() and tries the next floor.
+    Returns how many free spots were retired. Draining is not undone, add the spots to a new floor instead.
+    */
+    public int drain() {
+        draining = true;
+        int retired = 0;
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            for (ParkingSpot parkingSpot; (parkingSpot = allocationStrategy.claim(parkingSpotType, null)) != null; ) {
+                retire(parkingSpot);
+                retired++;
+            }
+        }
+        return retired;
     }
-}
 
+    public boolean isDrained() {
+        return draining && occupancy.getTotalUsed() == 0 && occupancy.getTotalFree() == 0;
+    }
 
-@Getter
-@Setter
-class ParkingLot {
-    private String parkingLotId;
-    private Address address; // This System is generic can be used anywhere in world, so need this attribute
-
-    private List<ParkingFloor> parkingFloors; // Can Add/Remove ParkingFloor
-    private List<EntrancePanel> entrancePanels; // Can Add/Remove EntrancePanel
-    private List<ExitPanel> exitPanels; // Can Add/Remove ExitPanel
+    private void retire(ParkingSpot parkingSpot) {
+        occupancy.spotRetired(parkingSpot.getParkingSpotType());
+    }
 
     /*
-    This Parking log is modeled as a Singleton
-    We have multiple  entrancePanels & exitPanels but instance of ParkingLot should be single
+    Used spot goes straight to another vehicle, without going back to the strategy (see AdmissionQueue). No gate can
+    take it in between & the counters don't move. false when the spot is not used.
     */
-    public static ParkingLot INSTANCE = new ParkingLot();
+    public boolean handOverSpot(String parkingSpotId, String vehicleId) {
+        return usedParkingSpots.computeIfPresent(parkingSpotId, (spotId, parkingSpot) -> {
+            parkingSpot.assignVehicleToSpot(vehicleId);
+            return parkingSpot;
+        }) != null;
+    }
 
-    private ParkingLot() {
-        this.parkingLotId = UUID.randomUUID().toString();
-        parkingFloors = new ArrayList<>();
-        entrancePanels = new ArrayList<>();
-        exitPanels = new ArrayList<>();
+    // Checking the free count of specific ParkingSpotType. O(1), no walk over the free spots.
+    public boolean canPark(ParkingSpotType parkingSpotType) {
+        return occupancy.getFreeCount(parkingSpotType) > 0;
     }
 
-    // Need to check every floor, in turn floor check every parking spot present in that floor
-    public boolean isFull() {
-        int index = 0;
-        BitSet bitSet = new BitSet();
-        for (ParkingFloor parkingFloor : parkingFloors) {
-            bitSet.set(index++, parkingFloor.isFloorFull());
+    // Floor display board: pushed the free counts of this floor when they change, see FreeCountFeed
+    public FreeCountFeed.Subscription subscribeFreeCounts(FreeCountListener listener) {
+        return subscribeFreeCounts(FreeCountFeed.shared(), listener);
+    }
+
+    public FreeCountFeed.Subscription subscribeFreeCounts(FreeCountFeed feed, FreeCountListener listener) {
+        return occupancy.feedSource(feed, floorId).subscribe(listener);
+    }
+}
+
+
+@Getter
+@Setter
+class ParkingLot {
+    private String parkingLotId;
+    private Address address; // This System is generic can be used anywhere in world, so need this attribute
+
+    /*
+    Topology of the lot. All three are copy on write: gates iterate over a snapshot & never see a
+    ConcurrentModificationException, while Admin adds (or drains & removes) floors and panels. Changes are rare, so
+    paying a copy per change is fine, and the allocation path takes no lock. Changes are synchronized on the lot.
+    */
+    private List<ParkingFloor> parkingFloors; // Can Add/Remove ParkingFloor: addParkingFloors(), removeParkingFloor()
+    private List<EntrancePanel> entrancePanels; // Can Add/Remove EntrancePanel
+    private List<ExitPanel> exitPanels; // Can Add/Remove ExitPanel
+    private final OccupancyCounters occupancy = new OccupancyCounters(); // Sum of all the floors counters
+
+    /*
+    Indexes, so that an exit is a single hash lookup and does not try vacateSpot() on every floor in turn.
+    spotIndex     : lower case parkingSpotId -> (ParkingFloor, ParkingSpot). Kept up to date when floors & spots are
+                    added. Spot ids are case insensitive like floor ids, see spotKey().
+    activeTickets : ticketId -> ParkingTicket. Kept up to date when tickets are issued & vacated.
+    activeTicketsByPlate : normalized plate -> ParkingTicket, same lifecycle as activeTickets. Exit cameras & the
+                    lost ticket desk only have the plate, they find the ticket (& its spot) with one lookup.
+    */
+    private final Map<String, SpotLocation> spotIndex = new ConcurrentHashMap<>();
+    private final Map<Long, ParkingTicket> activeTickets = new ConcurrentHashMap<>();
+    private final Map<String, ParkingTicket> activeTicketsByPlate = new ConcurrentHashMap<>();
+    private final Map<String, ParkingFloor> floorIndex = new ConcurrentHashMap<>(); // Lower case floorId -> floor
+
+    private final List<ParkingEventListener> listeners = new CopyOnWriteArrayList<>(); // e.g. ParkingJournal
+    private ParkingJournal journal; // Durable log of this lot, null when the lot is not journaled
+    private final TariffEngine tariffEngine = new TariffEngine(TariffTable.flat(new HourlyCost())); // Swap to reprice
+    private final ParkingMetrics metrics = new ParkingMetrics(this);
+    private volatile SpotCompatibility spotCompatibility = SpotCompatibility.STRICT;
+    private final Map<Long, Reservation> reservations = new ConcurrentHashMap<>(); // Active holds only
+    private final IdGenerator reservationIdGenerator = SnowflakeIdGenerator.forNextNode();
+    private volatile ClockSource clockSource = ClockSource.SYSTEM; // A VirtualClockSource when simulating
+    private final AdmissionQueue admissionQueue = new AdmissionQueue(); // Vehicles waiting for a spot, FIFO
+    private volatile SpotLeaseManager spotLeaseManager; // null unless enableSpotLeasing()
+    private PaymentPipeline paymentPipeline; // Shared by the PaymentPortals of the lot, made on first use
+
+    /*
+    This Parking lot was modeled as a Singleton, but we run many lots in one JVM.
+    Lots are now kept in ParkingLotRegistry (through ParkingLotRepository), and every EntrancePanel, ExitPanel,
+    PaymentPortal & Admin is bound to its own lot, so work on one lot never touches another lot.
+    */
+    public ParkingLot() {
+        this(UUID.randomUUID().toString());
+    }
+
+    // Also used when lots are restored from a snapshot, they keep the id they had
+    public ParkingLot(String parkingLotId) {
+        this.parkingLotId = parkingLotId;
+        parkingFloors = new CopyOnWriteArrayList<>();
+        entrancePanels = new CopyOnWriteArrayList<>();
+        exitPanels = new CopyOnWriteArrayList<>();
+    }
+
+    /*
+    Pipeline of the portals built without one. Made on first use with a StubPaymentGateway that answers at once &
+    never fails; set a pipeline on a real gateway before the portals are built. One per lot, not one per portal: a
+    pipeline holds a gateway pool & a settler thread.
+    */
+    public synchronized PaymentPipeline getPaymentPipeline() {
+        if (paymentPipeline == null)
+            paymentPipeline = new PaymentPipeline(this, new StubPaymentGateway(0, 0, 0));
+        return paymentPipeline;
+    }
+
+    public synchronized void setPaymentPipeline(PaymentPipeline paymentPipeline) {
+        this.paymentPipeline = paymentPipeline;
+    }
+
+    public void addListener(ParkingEventListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ParkingEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Attach only after the journal has been recovered into this lot, so the replay is not journaled again
+    public void attachJournal(ParkingJournal journal) {
+        this.journal = journal;
+        addListener(journal);
+    }
+
+    /*
+    Floors are added here, so that the floor counters roll up into the lot counters & its spots get indexed.
+    Idempotent: floor ids are unique in a lot (case insensitive, through floorIndex). Returns the floor of the lot with
+    that id, which is not parkingFloor when a floor with the same id was already there.
+    */
+    public ParkingFloor addParkingFloor(ParkingFloor parkingFloor) {
+        List<ParkingFloor> added = addParkingFloors(Collections.singletonList(parkingFloor));
+        return added.isEmpty() ? getParkingFloor(parkingFloor.getFloorId()) : parkingFloor;
+    }
+
+    /*
+    Adds fully built floors in one step (bulk import, see ParkingLotLayoutImporter): gates see either none or all of
+    them, as parkingFloors is copy on write and they are added with one addAll(). Floors whose id is already in the
+    lot are skipped, the ones added are returned.
+    */
+    public synchronized List<ParkingFloor> addParkingFloors(Collection<ParkingFloor> newFloors) {
+        List<ParkingFloor> added = new ArrayList<>(newFloors.size());
+        Map<ParkingFloor, List<ParkingSpot>> indexedSpots = new HashMap<>();
+        for (ParkingFloor parkingFloor : newFloors) {
+            if (floorIndex.putIfAbsent(floorKey(parkingFloor.getFloorId()), parkingFloor) != null)
+                continue;
+            List<ParkingSpot> spots = new ArrayList<>();
+            List<ParkingSpot> duplicates = new ArrayList<>();
+            parkingFloor.forEachSpot(parkingSpot -> {
+                if (spotIndex.putIfAbsent(spotKey(parkingSpot.getParkingSpotId()),
+                        new SpotLocation(parkingFloor, parkingSpot)) == null)
+                    spots.add(parkingSpot);
+                else
+                    duplicates.add(parkingSpot);
+            });
+            /*
+            A spot whose id is already in the lot (or twice in the floor) can't be reached through the spot index, so
+            it can't stay in the floor: it would be handed out but never vacated. It is taken out of the floor. If one
+            of them is in use it can't be, then the whole floor is refused & its index entries undone.
+            */
+            if (!removeDuplicateSpots(parkingFloor, duplicates)) {
+                for (ParkingSpot parkingSpot : spots)
+                    spotIndex.remove(spotKey(parkingSpot.getParkingSpotId()));
+                floorIndex.remove(floorKey(parkingFloor.getFloorId()), parkingFloor);
+                continue;
+            }
+            parkingFloor.getOccupancy().attachTo(occupancy);
+            parkingFloor.setSpotCompatibility(spotCompatibility);
+            indexedSpots.put(parkingFloor, spots);
+            added.add(parkingFloor);
+        }
+        parkingFloors.addAll(added);
+        for (ParkingEventListener listener : listeners) {
+            for (ParkingFloor parkingFloor : added) {
+                listener.onParkingFloorAdded(parkingFloor);
+                for (ParkingSpot parkingSpot : indexedSpots.get(parkingFloor))
+                    listener.onParkingSpotAdded(parkingFloor, parkingSpot);
+            }
         }
-        return bitSet.cardinality() == bitSet.size();
+        return added;
     }
 
-    // Need to check floor wish, in turn each floor checks do it has a free parking spot of vehicleType
-    public boolean canPark(VehicleType vehicleType) {
-        for (ParkingFloor parkingFloor : parkingFloors) {
-            if (parkingFloor.canPark(ParkingFloor.getSpotTypeForVehicle(vehicleType)))
-                return true;
+    private static boolean removeDuplicateSpots(ParkingFloor parkingFloor, List<ParkingSpot> duplicates) {
+        for (ParkingSpot parkingSpot : duplicates)
+            if (parkingFloor.isSpotUsed(parkingSpot))
+                return false;
+        for (ParkingSpot parkingSpot : duplicates)
+            parkingFloor.removeSpot(parkingSpot);
+        return true;
+    }
+
+    /*
+    Step 1 of taking a floor out (e.g. to re-stripe it): no new vehicle gets a spot on it, parked vehicles leave as
+    usual (see ParkingFloor.drain()). Spots of the floor held in entrance leases go back, so they are retired too.
+    Returns false when there is no such floor. Calling it again is harmless.
+    */
+    public boolean drainParkingFloor(String parkingFloorId) {
+        ParkingFloor parkingFloor = getParkingFloor(parkingFloorId);
+        if (parkingFloor == null)
+            return false;
+        boolean wasDraining = parkingFloor.isDraining();
+        parkingFloor.drain();
+        SpotLeaseManager leaseManager = spotLeaseManager;
+        if (leaseManager != null)
+            leaseManager.returnLeases(parkingFloor);
+        if (!wasDraining) // Journaled, so a restart before removeParkingFloor() doesn't put the floor back in service
+            listeners.forEach(listener -> listener.onParkingFloorDrained(parkingFloor));
+        return true;
+    }
+
+    /*
+    Step 2: drops a drained floor (no vehicle left on it) and its spots from the lot. Gates iterating over the old
+    floor list still skip it, its nonEmptyMask is 0. Returns false when the floor is unknown, not draining or still
+    has vehicles on it; poll isDrained() of the floor (or just call it again later).
+    */
+    public synchronized boolean removeParkingFloor(String parkingFloorId) {
+        ParkingFloor parkingFloor = getParkingFloor(parkingFloorId);
+        if (parkingFloor == null || !parkingFloor.isDrained())
+            return false;
+        floorIndex.remove(floorKey(parkingFloorId), parkingFloor);
+        parkingFloors.remove(parkingFloor);
+        parkingFloor.forEachSpot(parkingSpot ->
+                spotIndex.computeIfPresent(spotKey(parkingSpot.getParkingSpotId()),
+                        (spotId, spotLocation) -> spotLocation.getParkingFloor() == parkingFloor ? null : spotLocation));
+        parkingFloor.getOccupancy().detach();
+        listeners.forEach(listener -> listener.onParkingFloorRemoved(parkingFloor));
+        return true;
+    }
+
+    // O(1), through floorIndex
+    public ParkingFloor getParkingFloor(String parkingFloorId) {
+        return floorIndex.get(floorKey(parkingFloorId));
+    }
+
+    private static String floorKey(String parkingFloorId) {
+        return parkingFloorId.toLowerCase(Locale.ROOT);
+    }
+
+    // Same as floorKey(), but on the exit path: ids are usually lower case already, then no new String is made
+    static String spotKey(String parkingSpotId) {
+        for (int i = 0; i < parkingSpotId.length(); i++)
+            if (Character.isUpperCase(parkingSpotId.charAt(i)))
+                return parkingSpotId.toLowerCase(Locale.ROOT);
+        return parkingSpotId;
+    }
+
+    // Idempotent, returns false if an EntrancePanel with the same id is already present
+    public synchronized boolean addEntrancePanel(EntrancePanel entrancePanel) {
+        if (entrancePanels.stream().anyMatch(eP -> eP.getId().equalsIgnoreCase(entrancePanel.getId())))
+            return false;
+        entrancePanel.setParkingLot(this);
+        entrancePanels.add(entrancePanel);
+        SpotLeaseManager leaseManager = spotLeaseManager;
+        if (leaseManager != null)
+            leaseManager.addLease(entrancePanel);
+        listeners.forEach(listener -> listener.onEntrancePanelAdded(entrancePanel));
+        return true;
+    }
+
+    /*
+    Every entrance panel (the ones here & the ones added later) gets a SpotLease of blockSize spots per type it uses,
+    topped up every refillPeriod. Calling it again returns the manager already running.
+    */
+    public synchronized SpotLeaseManager enableSpotLeasing(int blockSize, long refillPeriod, TimeUnit unit) {
+        if (spotLeaseManager == null) {
+            SpotLeaseManager leaseManager = new SpotLeaseManager(this, blockSize);
+            for (EntrancePanel entrancePanel : entrancePanels)
+                leaseManager.addLease(entrancePanel);
+            leaseManager.start(refillPeriod, unit);
+            spotLeaseManager = leaseManager;
         }
-        return false;
+        return spotLeaseManager;
+    }
+
+    // Leased spots go back to the free pool (or to waiting vehicles)
+    public synchronized void disableSpotLeasing() {
+        SpotLeaseManager leaseManager = spotLeaseManager;
+        if (leaseManager == null)
+            return;
+        spotLeaseManager = null;
+        leaseManager.close();
+    }
+
+    // Idempotent, returns false if an ExitPanel with the same id is already present
+    public synchronized boolean addExitPanel(ExitPanel exitPanel) {
+        if (exitPanels.stream().anyMatch(eP -> eP.getId().equalsIgnoreCase(exitPanel.getId())))
+            return false;
+        exitPanel.setParkingLot(this);
+        exitPanels.add(exitPanel);
+        listeners.forEach(listener -> listener.onExitPanelAdded(exitPanel));
+        return true;
+    }
+
+    /*
+    Adds a ParkingSpot to a floor of this lot. Idempotent: if a spot with the same id is already present (on any floor)
+    that spot is returned, and nothing is added. putIfAbsent() makes the duplicate check & the add a single atomic step,
+    and it's a hash lookup instead of a walk over the whole Deque of the floor.
+    */
+    public ParkingSpot addParkingSpot(ParkingFloor parkingFloor, ParkingSpot parkingSpot) {
+        SpotLocation existing = spotIndex.putIfAbsent(spotKey(parkingSpot.getParkingSpotId()),
+                new SpotLocation(parkingFloor, parkingSpot));
+        if (existing != null)
+            return existing.getParkingSpot();
+        parkingFloor.addSpot(parkingSpot);
+        listeners.forEach(listener -> listener.onParkingSpotAdded(parkingFloor, parkingSpot));
+        return parkingSpot;
+    }
+
+    // Marks this exact spot as used, without going through the allocation strategy. Used by recovery.
+    public boolean occupyParkingSpot(String parkingSpotId, String vehicleId) {
+        SpotLocation spotLocation = spotIndex.get(spotKey(parkingSpotId));
+        if (spotLocation == null || !spotLocation.getParkingFloor().occupySpot(spotLocation.getParkingSpot()))
+            return false;
+        spotLocation.getParkingSpot().assignVehicleToSpot(vehicleId);
+        return true;
+    }
+
+    public SpotLocation getSpotLocation(String parkingSpotId) {
+        return spotIndex.get(spotKey(parkingSpotId));
+    }
+
+    public void addActiveTicket(ParkingTicket parkingTicket) {
+        activeTickets.put(parkingTicket.getTicketId(), parkingTicket);
+        if (parkingTicket.getLicensePlateNumber() != null)
+            activeTicketsByPlate.put(normalizePlate(parkingTicket.getLicensePlateNumber()), parkingTicket);
+        if (!listeners.isEmpty()) {
+            SpotLocation spotLocation = spotIndex.get(spotKey(parkingTicket.getAllocatedSpotId()));
+            listeners.forEach(listener -> listener.onTicketIssued(parkingTicket, spotLocation));
+        }
+    }
+
+    /*
+    Ticket is done (vehicle left). Returns false if the ticket was already closed, then the ticket is left as it is.
+    Exit time & charges are written on the ticket only by the caller that closes it, so a second scan of the same
+    ticket can't re-price what the first one settled.
+    Call it before the spot is vacated: listeners (the journal) must see the vacate before any new ticket on that spot.
+    */
+    public boolean closeActiveTicket(ParkingTicket parkingTicket, long vacatedAtEpochSecond, double charges) {
+        if (activeTickets.remove(parkingTicket.getTicketId()) == null)
+            return false;
+        parkingTicket.setVacatedAtEpochSecond(vacatedAtEpochSecond);
+        parkingTicket.setCharges(charges);
+        removeFromPlateIndex(parkingTicket);
+        if (!listeners.isEmpty()) {
+            SpotLocation spotLocation = spotIndex.get(spotKey(parkingTicket.getAllocatedSpotId()));
+            listeners.forEach(listener -> listener.onTicketVacated(parkingTicket, spotLocation));
+        }
+        return true;
+    }
+
+    public void paymentCompleted(Payment payment) {
+        listeners.forEach(listener -> listener.onPaymentCompleted(payment));
+    }
+
+    public ParkingTicket getActiveTicket(long ticketId) {
+        return activeTickets.get(ticketId);
+    }
+
+    // Printed ticket number (see ParkingTicket.getTicketNumber()), null if unknown or not a ticket number at all
+    public ParkingTicket getActiveTicket(String ticketNumber) {
+        try {
+            return activeTickets.get(SnowflakeIdGenerator.parse(ticketNumber.trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // "ka-01 ab 1234" & "KA01AB1234" are the same vehicle, whoever typed or read the plate
+    public ParkingTicket getActiveTicketByPlate(String licensePlateNumber) {
+        return activeTicketsByPlate.get(normalizePlate(licensePlateNumber));
+    }
+
+    public ParkingTicket removeActiveTicket(long ticketId) {
+        ParkingTicket parkingTicket = activeTickets.remove(ticketId);
+        if (parkingTicket != null)
+            removeFromPlateIndex(parkingTicket);
+        return parkingTicket;
+    }
+
+    /*
+    Driver lost the ticket: found by plate & marked LOST, the exit then charges the lost ticket fee on top of the stay.
+    Returns null when no vehicle with that plate is parked here.
+    */
+    public ParkingTicket reportLostTicket(String licensePlateNumber) {
+        ParkingTicket parkingTicket = getActiveTicketByPlate(licensePlateNumber);
+        if (parkingTicket != null)
+            parkingTicket.setTicketStatus(TicketStatus.LOST);
+        return parkingTicket;
+    }
+
+    // Two-arg remove: a newer ticket of the same plate (re-entry after the old one was closed) must stay indexed
+    private void removeFromPlateIndex(ParkingTicket parkingTicket) {
+        if (parkingTicket.getLicensePlateNumber() != null)
+            activeTicketsByPlate.remove(normalizePlate(parkingTicket.getLicensePlateNumber()), parkingTicket);
+    }
+
+    // Upper case, no blanks / '-' / '.'. Plates are usually normalized already, then no new String is made.
+    static String normalizePlate(String licensePlateNumber) {
+        int length = licensePlateNumber.length();
+        for (int i = 0; i < length; i++) {
+            char c = licensePlateNumber.charAt(i);
+            if (c == ' ' || c == '-' || c == '.' || Character.isLowerCase(c))
+                return normalizePlate(licensePlateNumber, i);
+        }
+        return licensePlateNumber;
+    }
+
+    private static String normalizePlate(String licensePlateNumber, int from) {
+        StringBuilder plate = new StringBuilder(licensePlateNumber.length()).append(licensePlateNumber, 0, from);
+        for (int i = from; i < licensePlateNumber.length(); i++) {
+            char c = licensePlateNumber.charAt(i);
+            if (c != ' ' && c != '-' && c != '.')
+                plate.append(Character.toUpperCase(c));
+        }
+        return plate.toString();
+    }
+
+    // Lot counters aggregate every floor, so there is no need to visit the floors. O(1). Leased spots are free:
+    // tryAllocate() takes them back before refusing a vehicle.
+    public boolean isFull() {
+        return occupancy.getTotalAvailable() == 0;
+    }
+
+    // Lot counters aggregate every floor, so there is no need to visit the floors. O(1).
+    public boolean canPark(VehicleType vehicleType) {
+        return (occupancy.getAvailableMask() & spotCompatibility.getCompatibleMask(vehicleType)) != 0;
+    }
+
+    // Applies to every floor of the lot, the ones already added & the ones added later
+    public void setSpotCompatibility(SpotCompatibility spotCompatibility) {
+        this.spotCompatibility = spotCompatibility;
+        for (ParkingFloor parkingFloor : parkingFloors)
+            parkingFloor.setSpotCompatibility(spotCompatibility);
+    }
+
+    public int getFreeSpotCount(ParkingSpotType parkingSpotType) {
+        return occupancy.getAvailableCount(parkingSpotType);
+    }
+
+    // Entrance display board: pushed the free counts of the whole lot when they change, see FreeCountFeed
+    public FreeCountFeed.Subscription subscribeFreeCounts(FreeCountListener listener) {
+        return subscribeFreeCounts(FreeCountFeed.shared(), listener);
+    }
+
+    public FreeCountFeed.Subscription subscribeFreeCounts(FreeCountFeed feed, FreeCountListener listener) {
+        return occupancy.feedSource(feed, parkingLotId).subscribe(listener);
     }
 
     // Need to check floor wish, in turn each floor checks do it has a free parking spot of vehicleType
     // If floor has a free parking spot, it return that back to parking lot
     public ParkingSpot getParkingSpot(VehicleType vehicleType) {
-        for (ParkingFloor parkingFloor : ParkingLot.INSTANCE.getParkingFloors()) {
-            ParkingSpot parkingSpot = parkingFloor.getSpot(vehicleType);
-            if (parkingSpot != null) {
-                return parkingSpot;
+        return getParkingSpot(vehicleType, null);
+    }
+
+    /*
+    entranceId lets the floor strategy pick the spot nearest to the entrance the vehicle came in from.
+    The chain order wins over the floor order: a CAR gets a COMPACT spot on any floor before a LARGE spot on the first
+    floor. The best type is picked from the lot nonEmptyMask, and only floors that have that type free are asked.
+    A vehicle that can't park anywhere is refused with one mask check, without visiting the floors. The refusal is a
+    miss on every floor, as when each floor's getSpot() was asked in turn.
+    */
+    public ParkingSpot getParkingSpot(VehicleType vehicleType, String entranceId) {
+        ParkingSpot parkingSpot = findParkingSpot(vehicleType, entranceId);
+        if (parkingSpot == null)
+            recordMiss(vehicleType);
+        return parkingSpot;
+    }
+
+    private void recordMiss(VehicleType vehicleType) {
+        for (ParkingFloor parkingFloor : parkingFloors)
+            parkingFloor.recordMiss(vehicleType);
+    }
+
+    // getParkingSpot() without counting a miss, for the callers that try again or count a refusal once themselves
+    private ParkingSpot findParkingSpot(VehicleType vehicleType, String entranceId) {
+        SpotCompatibility compatibility = spotCompatibility;
+        int candidates = occupancy.getNonEmptyMask() & compatibility.getCompatibleMask(vehicleType);
+        while (candidates != 0) {
+            ParkingSpotType parkingSpotType = compatibility.bestSpotType(vehicleType, candidates);
+            int bit = 1 << parkingSpotType.ordinal();
+            for (ParkingFloor parkingFloor : parkingFloors) {
+                if ((parkingFloor.getOccupancy().getNonEmptyMask() & bit) == 0)
+                    continue;
+                ParkingSpot parkingSpot = parkingFloor.claimSpot(parkingSpotType, entranceId);
+                if (parkingSpot != null)
+                    return parkingSpot;
             }
+            candidates &= ~bit;
         }
         return null;
     }
 
-    // Free up a ParkingSpot
+    /*
+    Atomic "try-allocate" used by the gates, it replaces the canPark() + getParkingSpot() pair.
+    With the pair, another panel could take the last free spot between the check and the claim. Here the claim itself
+    is the check: we either get a spot (already removed from the free Deque) or null.
+    */
+    public ParkingSpot tryAllocate(Vehicle vehicle) {
+        return tryAllocate(vehicle, null);
+    }
+
+    public ParkingSpot tryAllocate(Vehicle vehicle, String entranceId) {
+        ParkingSpot parkingSpot = findParkingSpot(vehicle.getType(), entranceId);
+        SpotLeaseManager leaseManager = spotLeaseManager;
+        // Nothing in the free pool: spots sitting in the leases of other entrances are taken back before refusing
+        if (parkingSpot == null && leaseManager != null
+                && leaseManager.returnLeases(spotCompatibility.getCompatibleMask(vehicle.getType())) > 0)
+            parkingSpot = findParkingSpot(vehicle.getType(), entranceId);
+        if (parkingSpot == null) {
+            recordMiss(vehicle.getType());
+            return null;
+        }
+        parkingSpot.assignVehicleToSpot(vehicle.getLicenseNumber());
+        return parkingSpot;
+    }
+
+    // Batch claim: up to count spots of a ParkingSpotType, floor by floor. Returns how many were claimed.
+    public int getParkingSpots(ParkingSpotType parkingSpotType, int count, String entranceId, List<ParkingSpot> claimed) {
+        return getParkingSpots(parkingSpotType, count, entranceId, claimed, 0);
+    }
+
+    // Same, floors are tried from firstFloor on (wrapping), so that batch claims of different entrances spread out
+    public int getParkingSpots(ParkingSpotType parkingSpotType, int count, String entranceId, List<ParkingSpot> claimed,
+                               int firstFloor) {
+        ParkingFloor[] floors = parkingFloors.toArray(new ParkingFloor[0]);
+        int claimedCount = 0;
+        for (int i = 0; i < floors.length; i++) {
+            if (claimedCount == count)
+                break;
+            ParkingFloor parkingFloor = floors[(firstFloor + i) % floors.length];
+            if (parkingFloor.canPark(parkingSpotType))
+                claimedCount += parkingFloor.getSpots(parkingSpotType, count - claimedCount, entranceId, claimed);
+        }
+        return claimedCount;
+    }
+
+    /*
+    Free up a ParkingSpot. Single lookup in the spot index, instead of asking every floor in turn.
+    When vehicles are waiting (awaitParkingSpot()), the spot is handed to the oldest waiter that can use it instead of
+    being freed. When nobody waits that's one volatile read more.
+    */
     public ParkingSpot vacateParkingSpot(String parkingSpotId) {
-        for (ParkingFloor parkingFloor : ParkingLot.INSTANCE.getParkingFloors()) {
-            ParkingSpot parkingSpot = parkingFloor.vacateSpot(parkingSpotId);
+        SpotLocation spotLocation = spotIndex.get(spotKey(parkingSpotId));
+        if (spotLocation == null)
+            return null;
+        // A spot of a draining floor is retired, not handed over
+        if (admissionQueue.getWaiting() > 0 && !spotLocation.getParkingFloor().isDraining() && handOff(spotLocation))
+            return spotLocation.getParkingSpot();
+        // The floor knows the spot by its own id, which may differ in case from the one the exit scanned
+        ParkingSpot parkingSpot =
+                spotLocation.getParkingFloor().vacateSpot(spotLocation.getParkingSpot().getParkingSpotId());
+        if (parkingSpot != null && admissionQueue.getWaiting() > 0)
+            admitWaiters(); // A vehicle that queued while this spot was being freed
+        return parkingSpot;
+    }
+
+    /*
+    Gate side of the admission queue. Completes with the spot (already assigned to the vehicle) or with null when the
+    queue of that VehicleType is full (rejected) or maxWait ran out (abandoned). Cancel the future when the driver
+    gives up, the place in the queue is freed.
+    Nobody polls canPark(): a waiter is woken by the vacate that hands it a spot. A vehicle does not jump the queue,
+    it only takes a free spot directly when no vehicle of its type is waiting.
+    */
+    public CompletableFuture<ParkingSpot> awaitParkingSpot(Vehicle vehicle, String entranceId, long maxWait,
+                                                           TimeUnit unit) {
+        if (!admissionQueue.hasWaiters(vehicle.getType())) {
+            ParkingSpot parkingSpot = tryAllocate(vehicle, entranceId);
             if (parkingSpot != null)
-                return parkingSpot;
+                return CompletableFuture.completedFuture(parkingSpot);
         }
-        return null;
+        AdmissionQueue.Waiter waiter =
+                admissionQueue.offer(vehicle, entranceId, clockSource.currentTimeMillis() + unit.toMillis(maxWait));
+        if (waiter == null)
+            return CompletableFuture.completedFuture(null);
+        CompletableFuture<ParkingSpot> future = waiter.getFuture();
+        scheduleTimeout(waiter);
+        future.whenComplete((parkingSpot, e) -> {
+            if (future.isCancelled())
+                admissionQueue.abandon(waiter);
+        });
+        admitWaiters(); // Spots freed before the waiter was queued
+        return future;
     }
-}
 
+    // Abandons the waiter at its deadline, on the lot clock. A requeued waiter gets a new one, for the time it has left.
+    private void scheduleTimeout(AdmissionQueue.Waiter waiter) {
+        ClockSource clock = clockSource;
+        waiter.setTimeout(clock.schedule(() -> {
+            if (admissionQueue.abandon(waiter))
+                waiter.getFuture().complete(null);
+        }, Math.max(0, waiter.getDeadlineMillis() - clock.currentTimeMillis()), TimeUnit.MILLISECONDS));
+    }
 
-/************************************************** Ticket ***********************************************************/
+    // Vacate side: claims the oldest waiter that can use this spot type & moves the spot over to it
+    private boolean handOff(SpotLocation spotLocation) {
+        ParkingSpot parkingSpot = spotLocation.getParkingSpot();
+        int spotTypeBit = 1 << parkingSpot.getParkingSpotType().ordinal();
+        AdmissionQueue.Waiter waiter;
+        while ((waiter = admissionQueue.peek(spotTypeBit, spotCompatibility)) != null) {
+            if (!admissionQueue.claim(waiter))
+                continue;
+            if (!spotLocation.getParkingFloor().handOverSpot(parkingSpot.getParkingSpotId(),
+                    waiter.getVehicle().getLicenseNumber())) {
+                admissionQueue.requeue(waiter); // Spot was not in use (vacated twice), the waiter keeps its turn
+                scheduleTimeout(waiter);
+                return false;
+            }
+            admit(waiter, parkingSpot);
+            return true;
+        }
+        return false;
+    }
 
-enum TicketStatus {
-    ACTIVE, LOST
-}
+    // Free spots & waiters at the same time (a waiter queued while a spot was freed): match them up
+    private void admitWaiters() {
+        AdmissionQueue.Waiter waiter;
+        while ((waiter = admissionQueue.peek(occupancy.getNonEmptyMask(), spotCompatibility)) != null) {
+            ParkingSpot parkingSpot = findParkingSpot(waiter.getVehicle().getType(), waiter.getEntranceId());
+            if (parkingSpot == null)
+                continue; // Another gate took it, the mask is read again
+            if (!admissionQueue.claim(waiter)) {
+                spotIndex.get(spotKey(parkingSpot.getParkingSpotId())).getParkingFloor()
+                        .vacateSpot(parkingSpot.getParkingSpotId());
+                continue;
+            }
+            parkingSpot.assignVehicleToSpot(waiter.getVehicle().getLicenseNumber());
+            admit(waiter, parkingSpot);
+        }
+    }
 
-@Getter
-@Setter
-class ParkingTicket {
-    private String ticketNumber;
-    private String licensePlateNumber;
-    private String allocatedSpotId;
-    private LocalDateTime issuedAt;
-    private LocalDateTime vacatedAt;
-    private double charges;
-    private TicketStatus ticketStatus;
-}
+    // Driver gave up just as the spot came (future already cancelled): the spot goes to the next one
+    private void admit(AdmissionQueue.Waiter waiter, ParkingSpot parkingSpot) {
+        if (!waiter.getFuture().complete(parkingSpot))
+            vacateParkingSpot(parkingSpot.getParkingSpotId());
+    }
 
-@Getter
-class EntrancePanel {
-    private String id;
+    /*
+    Holds a spot for a monthly pass holder or a pre-booked customer, until they arrive or holdFor runs out.
+    The spot is claimed like any other (so it counts as used & no gate can give it away), the expiry is a timeout on
+    the lot clock (the shared LotTimeouts timing wheel, or the virtual clock of a simulation). Returns null when no
+    compatible spot is free.
+    Holds are not journaled: after a restart the held spots are free again and holders get a normal ticket.
+    */
+    public Reservation reserveParkingSpot(VehicleType vehicleType, String holderId, long holdFor, TimeUnit unit) {
+        ParkingSpot parkingSpot = getParkingSpot(vehicleType, null);
+        if (parkingSpot == null)
+            return null;
+        parkingSpot.assignVehicleToSpot(holderId);
+        ClockSource clock = clockSource;
+        Reservation reservation = new Reservation(reservationIdGenerator.nextId(), holderId, vehicleType, parkingSpot,
+                clock.currentTimeMillis() + unit.toMillis(holdFor));
+        reservations.put(reservation.getReservationId(), reservation);
+        reservation.setExpiry(clock.schedule(() -> expireReservation(reservation), holdFor, unit));
+        return reservation;
+    }
 
-    public EntrancePanel(String id) {
-        this.id = id;
+    public Reservation getReservation(long reservationId) {
+        return reservations.get(reservationId);
     }
 
-    public ParkingTicket getParkingTicket(Vehicle vehicle) {
-        if (!ParkingLot.INSTANCE.canPark(vehicle.getType()))
+    /*
+    Holder arrived: the held spot is handed to the vehicle. null when the reservation is not active anymore (expired,
+    cancelled or already used) or the vehicle can't use that spot type. Arrival, cancel & expiry race on one CAS of the
+    reservation status, exactly one of them wins.
+    */
+    public ParkingSpot claimReservation(long reservationId, Vehicle vehicle) {
+        Reservation reservation = reservations.get(reservationId);
+        if (reservation == null)
             return null;
-        ParkingSpot parkingSpot = ParkingLot.INSTANCE.getParkingSpot(vehicle.getType());
-        if (parkingSpot == null)
+        int spotTypeBit = 1 << reservation.getParkingSpot().getParkingSpotType().ordinal();
+        if ((spotCompatibility.getCompatibleMask(vehicle.getType()) & spotTypeBit) == 0)
+            return null;
+        if (!closeReservation(reservation, ReservationStatus.FULFILLED))
             return null;
-        return buildTicket(vehicle.getLicenseNumber(), parkingSpot.getParkingSpotId());
+        reservation.getParkingSpot().assignVehicleToSpot(vehicle.getLicenseNumber());
+        return reservation.getParkingSpot();
     }
 
-    private ParkingTicket buildTicket(String vehicleLicenseNumber, String parkingSpotId) {
-        ParkingTicket parkingTicket = new ParkingTicket();
-        parkingTicket.setIssuedAt(LocalDateTime.now());
-        parkingTicket.setAllocatedSpotId(parkingSpotId);
-        parkingTicket.setLicensePlateNumber(vehicleLicenseNumber);
-        parkingTicket.setTicketNumber(UUID.randomUUID().toString());
-        parkingTicket.setTicketStatus(TicketStatus.ACTIVE);
-        return parkingTicket;
+    public boolean cancelReservation(long reservationId) {
+        Reservation reservation = reservations.get(reservationId);
+        if (reservation == null || !closeReservation(reservation, ReservationStatus.CANCELLED))
+            return false;
+        vacateParkingSpot(reservation.getParkingSpot().getParkingSpotId());
+        return true;
+    }
+
+    // Runs on the timing wheel thread (or the thread that moves a VirtualClockSource)
+    private void expireReservation(Reservation reservation) {
+        if (closeReservation(reservation, ReservationStatus.EXPIRED))
+            vacateParkingSpot(reservation.getParkingSpot().getParkingSpotId());
+    }
+
+    private boolean closeReservation(Reservation reservation, ReservationStatus status) {
+        if (!reservation.getStatus().compareAndSet(ReservationStatus.ACTIVE, status))
+            return false;
+        reservations.remove(reservation.getReservationId());
+        HashedTimingWheel.Timeout expiry = reservation.getExpiry();
+        if (expiry != null) // null only if closed before the timeout was even scheduled, it then fires as a no-op
+            expiry.cancel();
+        return true;
+    }
+
+    public int getReservationCount() {
+        return reservations.size();
+    }
+
+    static HashedTimingWheel getTimeoutWheel() {
+        return LotTimeouts.WHEEL;
+    }
+
+    // One wheel for every lot of the JVM (one thread) for reservation holds & admission waits on the SYSTEM clock,
+    // started on first use
+    private static class LotTimeouts {
+        private static final HashedTimingWheel WHEEL =
+                new HashedTimingWheel("lot-timeouts", 100, TimeUnit.MILLISECONDS, 1024);
     }
-    // About Java UUID: https://www.javatpoint.com/java-uuid
 }
 
-@Getter
-@AllArgsConstructor
-class ExitPanel {
-    private String id;
+/*
+Vehicles waiting at a full lot (ParkingLot.awaitParkingSpot()), one FIFO per VehicleType. Exits hand their spot to
+the oldest waiter that can use it (compatible types, see SpotCompatibility), so turnover is first come first served
+& gate controllers don't poll canPark() in a loop.
+- capacity    : max waiters per VehicleType, a vehicle past that is rejected right away (backpressure, the gate can
+                send it elsewhere)
+- admitted / rejected / abandoned : waits that got a spot, that found the queue full, that timed out or were cancelled
+A waiter is claimed once, with a CAS from WAITING to ADMITTED or ABANDONED: a spot & a timeout (or a cancel) arriving
+together can't both win.
+*/
+class AdmissionQueue {
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final int WAITING = 0, ADMITTED = 1, ABANDONED = 2;
+    private static final VehicleType[] VEHICLE_TYPES = VehicleType.values();
 
-    public ParkingTicket scanAndVacate(ParkingTicket parkingTicket) {
-        ParkingSpot parkingSpot =
-                ParkingLot.INSTANCE.vacateParkingSpot(parkingTicket.getAllocatedSpotId());
-        parkingTicket.setCharges(calculateCost(parkingTicket, parkingSpot.getParkingSpotType()));
-        return parkingTicket;
+    @Getter
+    public static final class Waiter {
+        private final Vehicle vehicle;
+        private final String entranceId;
+        private final long sequence; // Arrival order across the queues
+        private final long deadlineMillis; // Lot clock time the wait ends at, a requeued waiter keeps it
+        private final CompletableFuture<ParkingSpot> future = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        @Setter
+        private volatile HashedTimingWheel.Timeout timeout;
+
+        Waiter(Vehicle vehicle, String entranceId, long sequence, long deadlineMillis) {
+            this.vehicle = vehicle;
+            this.entranceId = entranceId;
+            this.sequence = sequence;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    private final List<ConcurrentLinkedDeque<Waiter>> queues; // Index is VehicleType.ordinal()
+    private final AtomicIntegerArray queued = new AtomicIntegerArray(VEHICLE_TYPES.length);
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    @Getter
+    @Setter
+    private volatile int capacity = DEFAULT_CAPACITY;
+    @Getter
+    private final LongAdder admitted = new LongAdder();
+    @Getter
+    private final LongAdder rejected = new LongAdder();
+    @Getter
+    private final LongAdder abandoned = new LongAdder();
+
+    public AdmissionQueue() {
+        List<ConcurrentLinkedDeque<Waiter>> queues = new ArrayList<>(VEHICLE_TYPES.length);
+        for (int type = 0; type < VEHICLE_TYPES.length; type++)
+            queues.add(new ConcurrentLinkedDeque<>());
+        this.queues = Collections.unmodifiableList(queues);
+    }
+
+    // null when the queue of that VehicleType is full. deadlineMillis is the time the wait ends at, on the lot clock.
+    Waiter offer(Vehicle vehicle, String entranceId, long deadlineMillis) {
+        int type = vehicle.getType().ordinal();
+        int size;
+        do {
+            size = queued.get(type);
+            if (size >= capacity) {
+                rejected.increment();
+                return null;
+            }
+        } while (!queued.compareAndSet(type, size, size + 1));
+        Waiter waiter = new Waiter(vehicle, entranceId, sequence.getAndIncrement(), deadlineMillis);
+        waiting.incrementAndGet();
+        queues.get(type).addLast(waiter);
+        return waiter;
+    }
+
+    /*
+    Oldest waiter of the vehicle types that can use one of spotTypeMask. Only a peek, claim() decides who gets it.
+    Waiters already claimed are still at the head for a moment (remove() comes after the CAS), they are skipped.
+    */
+    Waiter peek(int spotTypeMask, SpotCompatibility spotCompatibility) {
+        Waiter oldest = null;
+        for (VehicleType vehicleType : VEHICLE_TYPES) {
+            if (queued.get(vehicleType.ordinal()) == 0
+                    || (spotCompatibility.getCompatibleMask(vehicleType) & spotTypeMask) == 0)
+                continue;
+            for (Waiter waiter : queues.get(vehicleType.ordinal()))
+                if (waiter.state.get() == WAITING) {
+                    if (oldest == null || waiter.sequence < oldest.sequence)
+                        oldest = waiter;
+                    break;
+                }
+        }
+        return oldest;
+    }
+
+    boolean claim(Waiter waiter) {
+        if (!waiter.state.compareAndSet(WAITING, ADMITTED))
+            return false;
+        remove(waiter);
+        HashedTimingWheel.Timeout timeout = waiter.timeout;
+        if (timeout != null)
+            timeout.cancel();
+        admitted.increment();
+        return true;
+    }
+
+    boolean abandon(Waiter waiter) {
+        if (!waiter.state.compareAndSet(WAITING, ABANDONED))
+            return false;
+        remove(waiter);
+        HashedTimingWheel.Timeout timeout = waiter.timeout;
+        if (timeout != null)
+            timeout.cancel();
+        abandoned.increment();
+        return true;
+    }
+
+    /*
+    Claimed waiter that could not get the spot after all, back to the head of its queue. claim() cancelled its
+    timeout: the caller schedules a new one for the time left (ParkingLot.scheduleTimeout()).
+    */
+    void requeue(Waiter waiter) {
+        admitted.decrement();
+        queued.incrementAndGet(waiter.vehicle.getType().ordinal());
+        waiting.incrementAndGet();
+        waiter.state.set(WAITING);
+        queues.get(waiter.vehicle.getType().ordinal()).addFirst(waiter);
+    }
+
+    private void remove(Waiter waiter) {
+        int type = waiter.vehicle.getType().ordinal();
+        if (queues.get(type).remove(waiter)) {
+            queued.decrementAndGet(type);
+            waiting.decrementAndGet();
+        }
+    }
+
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    public int getWaiting(VehicleType vehicleType) {
+        return queued.get(vehicleType.ordinal());
+    }
+
+    public boolean hasWaiters(VehicleType vehicleType) {
+        return queued.get(vehicleType.ordinal()) > 0;
+    }
+}
+
+
+/*
+Spots claimed ahead of time for one entrance (SpotLeaseManager), a small stack per ParkingSpotType. The gate thread
+of that panel takes from it, the refill thread tops it up & any thread can return it. That's a handful of threads on
+one lease, against every panel of the lot on the floor deques, so a plain monitor is enough (uncontended nearly
+always) & a take allocates nothing.
+*/
+class SpotLease {
+    private static final ParkingSpotType[] SPOT_TYPES = ParkingSpotType.values();
+
+    private final SpotLeaseManager leaseManager;
+    @Getter
+    private final String entranceId;
+    @Getter
+    private final int homeFloor; // Index of the floor the batch claims of this lease start from
+    private final SpotLocation[][] spots = new SpotLocation[SPOT_TYPES.length][]; // With the floor, for its counters
+    private final int[] sizes = new int[SPOT_TYPES.length];
+    @Getter
+    private volatile int demandMask; // ParkingSpotTypes this entrance has asked for, only those are refilled
+
+    SpotLease(SpotLeaseManager leaseManager, String entranceId, int homeFloor, int blockSize) {
+        this.leaseManager = leaseManager;
+        this.entranceId = entranceId;
+        this.homeFloor = homeFloor;
+        for (int type = 0; type < spots.length; type++)
+            spots[type] = new SpotLocation[blockSize];
+    }
+
+    // Spot for the vehicle, not assigned yet. null: the gate allocates from the lot as usual
+    public ParkingSpot take(VehicleType vehicleType) {
+        return leaseManager.take(this, vehicleType);
+    }
+
+    void markDemand(ParkingSpotType parkingSpotType) {
+        int bit = 1 << parkingSpotType.ordinal();
+        if ((demandMask & bit) == 0)
+            demandMask |= bit; // Only the gate thread writes it
+    }
+
+    synchronized SpotLocation poll(ParkingSpotType parkingSpotType) {
+        int type = parkingSpotType.ordinal();
+        if (sizes[type] == 0)
+            return null;
+        SpotLocation spotLocation = spots[type][--sizes[type]];
+        spots[type][sizes[type]] = null;
+        return spotLocation;
+    }
+
+    // false when the stack of that type is full, the caller keeps the spot
+    synchronized boolean add(SpotLocation spotLocation) {
+        int type = spotLocation.getParkingSpot().getParkingSpotType().ordinal();
+        if (sizes[type] == spots[type].length)
+            return false;
+        spots[type][sizes[type]++] = spotLocation;
+        return true;
+    }
+
+    // Takes the spots of one floor out of the lease (into removed), the others keep their order
+    synchronized void removeSpotsOf(ParkingFloor parkingFloor, List<SpotLocation> removed) {
+        for (int type = 0; type < spots.length; type++) {
+            int kept = 0;
+            for (int i = 0; i < sizes[type]; i++) {
+                if (spots[type][i].getParkingFloor() == parkingFloor)
+                    removed.add(spots[type][i]);
+                else
+                    spots[type][kept++] = spots[type][i];
+            }
+            Arrays.fill(spots[type], kept, sizes[type], null);
+            sizes[type] = kept;
+        }
+    }
+
+    public synchronized int size(ParkingSpotType parkingSpotType) {
+        return sizes[parkingSpotType.ordinal()];
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (int type = 0; type < SPOT_TYPES.length; type++)
+            size += sizes[type];
+        return size;
+    }
+}
+
+/*
+Per entrance spot leasing (ParkingLot.enableSpotLeasing()). getParkingSpot() scans the floors from the first one, so
+every panel of a busy lot fights over the free deques of floor 0. Instead each entrance keeps a SpotLease of up to
+blockSize spots per ParkingSpotType it uses, claimed in one batch (strategy batch claim, so the nearest spots to that
+entrance with NearestEntranceAllocationStrategy) from its own home floor first. A ticket issue then only polls the
+lease of its own panel.
+- refill   : a background thread tops the leases up every refill period. A gate whose lease is empty tops it up
+             itself, one batch claim for the next blockSize vehicles.
+- low lot  : a refill never takes the free pool of a type under lowWaterMark. Under lowWaterMark / 2 the leases of
+             that type are returned, & a gate that finds the free pool empty takes leased spots back before
+             refusing a vehicle (ParkingLot.tryAllocate()). So leasing never turns a vehicle away.
+- waiting  : no leased spot is given while vehicles of that type wait in the AdmissionQueue, returned spots are
+             handed to them.
+- draining : drainParkingFloor() takes back the leased spots of that floor only, the other leases stay.
+Leased spots are out of the free pool (claims don't see them), but no vehicle is on them: the occupancy counters keep
+them as leased, and isFull(), canPark(), free counts of boards, metrics & analytics count them as free. The lease
+itself works on the free pool (OccupancyCounters.getFreeCount()). Leases are not journaled: after a restart the spots
+are simply free.
+*/
+class SpotLeaseManager implements AutoCloseable {
+    private static final ParkingSpotType[] SPOT_TYPES = ParkingSpotType.values();
+
+    private final ParkingLot parkingLot;
+    @Getter
+    private final int blockSize;
+    @Setter
+    private volatile int lowWaterMark; // 0: one full block per lease, see getLowWaterMark()
+    private final Map<String, SpotLease> leases = new ConcurrentHashMap<>(); // entranceId -> lease
+    private final AtomicInteger nextHomeFloor = new AtomicInteger();
+    private volatile boolean closed;
+    private ScheduledExecutorService refiller;
+    @Getter
+    private final LongAdder leaseHits = new LongAdder(); // Tickets given from a lease
+    @Getter
+    private final LongAdder batchClaims = new LongAdder();
+    @Getter
+    private final LongAdder returnedSpots = new LongAdder();
+
+    public SpotLeaseManager(ParkingLot parkingLot, int blockSize) {
+        this.parkingLot = parkingLot;
+        this.blockSize = blockSize;
+    }
+
+    // Free spots of a type the leases leave in the pool. By default as many as all the leases could hold.
+    public int getLowWaterMark() {
+        int mark = lowWaterMark;
+        return mark > 0 ? mark : blockSize * leases.size();
+    }
+
+    void addLease(EntrancePanel entrancePanel) {
+        SpotLease lease = new SpotLease(this, entrancePanel.getId(), nextHomeFloor.getAndIncrement(), blockSize);
+        if (leases.putIfAbsent(entrancePanel.getId(), lease) == null)
+            entrancePanel.setSpotLease(lease);
+    }
+
+    void start(long refillPeriod, TimeUnit unit) {
+        refiller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spot-lease-refill");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refiller.scheduleWithFixedDelay(this::refill, refillPeriod, refillPeriod, unit);
+    }
+
+    // Leases take the first type of the chain only, overflow types stay with the normal allocation
+    ParkingSpot take(SpotLease lease, VehicleType vehicleType) {
+        if (closed || parkingLot.getAdmissionQueue().hasWaiters(vehicleType))
+            return null;
+        ParkingSpotType parkingSpotType = parkingLot.getSpotCompatibility().getChain(vehicleType).get(0);
+        lease.markDemand(parkingSpotType);
+        SpotLocation spotLocation = lease.poll(parkingSpotType);
+        if (spotLocation == null && topUp(lease, parkingSpotType) > 0)
+            spotLocation = lease.poll(parkingSpotType);
+        if (spotLocation == null)
+            return null;
+        spotLocation.getParkingFloor().getOccupancy().spotUnleased(parkingSpotType);
+        leaseHits.increment();
+        return spotLocation.getParkingSpot();
+    }
+
+    // One pass of the refill thread, also callable directly
+    public void refill() {
+        for (ParkingSpotType parkingSpotType : SPOT_TYPES) {
+            if (parkingLot.getOccupancy().getFreeCount(parkingSpotType) < getLowWaterMark() / 2) {
+                returnLeases(1 << parkingSpotType.ordinal());
+                continue;
+            }
+            for (SpotLease lease : leases.values())
+                if ((lease.getDemandMask() & (1 << parkingSpotType.ordinal())) != 0)
+                    topUp(lease, parkingSpotType);
+        }
+    }
+
+    // Claims what the lease misses of that type in one batch, keeping lowWaterMark spots in the free pool
+    private int topUp(SpotLease lease, ParkingSpotType parkingSpotType) {
+        int count = Math.min(blockSize - lease.size(parkingSpotType),
+                parkingLot.getOccupancy().getFreeCount(parkingSpotType) - getLowWaterMark());
+        if (closed || count <= 0)
+            return 0;
+        List<ParkingSpot> claimed = new ArrayList<>(count);
+        int claimedCount =
+                parkingLot.getParkingSpots(parkingSpotType, count, lease.getEntranceId(), claimed, lease.getHomeFloor());
+        for (ParkingSpot parkingSpot : claimed) {
+            SpotLocation spotLocation = parkingLot.getSpotLocation(parkingSpot.getParkingSpotId());
+            spotLocation.getParkingFloor().getOccupancy().spotLeased(parkingSpotType); // Before a take can unlease it
+            if (!lease.add(spotLocation)) // Topped up twice at once (gate & refill thread), the extra goes back
+                release(spotLocation);
+        }
+        batchClaims.increment();
+        if (closed) // Closed meanwhile, close() may have drained this lease already
+            returnLease(lease, 1 << parkingSpotType.ordinal());
+        return claimedCount;
+    }
+
+    // Leased spots of the types in spotTypeMask go back to the lot, from every lease. Returns how many.
+    public int returnLeases(int spotTypeMask) {
+        int returned = 0;
+        for (SpotLease lease : leases.values())
+            returned += returnLease(lease, spotTypeMask);
+        return returned;
+    }
+
+    private int returnLease(SpotLease lease, int spotTypeMask) {
+        int returned = 0;
+        for (ParkingSpotType parkingSpotType : SPOT_TYPES) {
+            if ((spotTypeMask & (1 << parkingSpotType.ordinal())) == 0)
+                continue;
+            for (SpotLocation spotLocation; (spotLocation = lease.poll(parkingSpotType)) != null; returned++)
+                release(spotLocation);
+        }
+        returnedSpots.add(returned);
+        return returned;
+    }
+
+    // Leased spots of a draining floor go back to it (they are retired there), every other leased spot stays
+    public int returnLeases(ParkingFloor parkingFloor) {
+        List<SpotLocation> removed = new ArrayList<>();
+        for (SpotLease lease : leases.values())
+            lease.removeSpotsOf(parkingFloor, removed);
+        for (SpotLocation spotLocation : removed)
+            release(spotLocation);
+        returnedSpots.add(removed.size());
+        return removed.size();
+    }
+
+    private void release(SpotLocation spotLocation) {
+        ParkingSpot parkingSpot = spotLocation.getParkingSpot();
+        spotLocation.getParkingFloor().getOccupancy().spotUnleased(parkingSpot.getParkingSpotType());
+        parkingLot.vacateParkingSpot(parkingSpot.getParkingSpotId());
+    }
+
+    public int getLeasedCount() {
+        int leased = 0;
+        for (SpotLease lease : leases.values())
+            leased += lease.size();
+        return leased;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (refiller != null)
+            refiller.shutdownNow();
+        for (EntrancePanel entrancePanel : parkingLot.getEntrancePanels())
+            if (entrancePanel.getSpotLease() != null && leases.get(entrancePanel.getId()) == entrancePanel.getSpotLease())
+                entrancePanel.setSpotLease(null);
+        returnLeases(-1);
+    }
+}
+
+
+/*
+Where a ParkingSpot lives. Value of the ParkingLot spot index, so that an exit goes straight to the right floor.
+*/
+@Getter
+@AllArgsConstructor
+class SpotLocation {
+    private final ParkingFloor parkingFloor;
+    private final ParkingSpot parkingSpot;
+}
+
+
+/************************************************** Display boards ***************************************************/
+
+/*
+Gets the free counts of a lot or a floor (ParkingLot / ParkingFloor.subscribeFreeCounts()), on the feed thread.
+freeCounts is indexed by ParkingSpotType.ordinal() and is reused for the next update, copy it to keep it.
+*/
+interface FreeCountListener {
+    void onFreeCounts(String sourceId, int[] freeCounts);
+}
+
+/*
+Pushes free spot counts to the LED boards at the entrances & floors, so boards don't poll the lot.
+
+Gate path: a change of a free count marks the Source of those counters dirty (OccupancyCounters.markFeedDirty()).
+Only the first change after a publish puts the Source on the ring, with a CAS on its queued flag. Every other change
+of the burst is one volatile read. Nothing is allocated per change.
+Feed thread: every interval it takes the dirty sources off the ring, reads their counts once (the current values, so
+a whole burst becomes one update) and calls the listeners whose counts differ from what they were last sent. So a
+board gets at most one update per interval, and none when nothing it shows has changed.
+
+The ring is a preallocated array with many producers (gates) & one consumer (feed thread). A Source is on it at most
+once, so the ring can't overflow while there are no more sources than slots. A Source is made for each lot / floor
+the first time a board subscribes to it, and is kept (unsubscribed or not) for the life of the feed.
+shared() is the feed used when no feed is given, 1 update per second per board.
+*/
+class FreeCountFeed implements AutoCloseable {
+    public static final int DEFAULT_MAX_SOURCES = 1024;
+    private static final ParkingSpotType[] SPOT_TYPES = ParkingSpotType.values(); // values() clones on every call
+
+    private final AtomicReferenceArray<Source> ring;
+    private final int ringMask;
+    private final AtomicLong tail = new AtomicLong(); // Next slot to write, gates
+    private long head; // Next slot to read, feed thread only
+    private final AtomicInteger sourceCount = new AtomicInteger();
+    private final ScheduledExecutorService publisher;
+    @Getter
+    private final LongAdder published = new LongAdder(); // Listener calls
+    @Getter
+    private final LongAdder listenerErrors = new LongAdder(); // Listener calls that threw, for health / metrics
+    @Getter
+    private volatile RuntimeException lastListenerError;
+
+    public FreeCountFeed(long interval, TimeUnit unit) {
+        this(interval, unit, DEFAULT_MAX_SOURCES);
+    }
+
+    public FreeCountFeed(long interval, TimeUnit unit, int maxSources) {
+        int capacity = 1;
+        while (capacity < maxSources)
+            capacity <<= 1;
+        ring = new AtomicReferenceArray<>(capacity);
+        ringMask = capacity - 1;
+        publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "free-count-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publisher.scheduleWithFixedDelay(this::publish, interval, interval, unit);
+    }
+
+    public static FreeCountFeed shared() {
+        return Shared.FEED;
+    }
+
+    Source newSource(String sourceId, OccupancyCounters counters) {
+        if (sourceCount.incrementAndGet() > ring.length()) {
+            sourceCount.decrementAndGet();
+            throw new IllegalStateException("Feed is at its capacity of " + ring.length() + " sources");
+        }
+        return new Source(this, sourceId, counters);
+    }
+
+    // Gate path, at most once per Source between two publishes
+    private void offer(Source source) {
+        ring.set((int) tail.getAndIncrement() & ringMask, source);
+    }
+
+    /*
+    Only what was queued before the round started: a source dirtied again during the round waits for the next one.
+    A null slot is a gate that took the slot but has not written it yet, it's picked up next round as well.
+    */
+    private void publish() {
+        long end = tail.get();
+        while (head < end) {
+            int slot = (int) head & ringMask;
+            Source source = ring.get(slot);
+            if (source == null)
+                return;
+            ring.set(slot, null);
+            head++;
+            source.queued.set(false); // Before the counts are read, so a change from now on queues it again
+            source.publish();
+        }
+    }
+
+    // Not for shared(), that one lives as long as the JVM
+    @Override
+    public void close() {
+        publisher.shutdownNow();
+    }
+
+    public static final class Source {
+        @Getter
+        private final FreeCountFeed feed;
+        @Getter
+        private final String sourceId;
+        private final OccupancyCounters counters;
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        private final int[] freeCounts = new int[SPOT_TYPES.length]; // Feed thread only
+
+        private Source(FreeCountFeed feed, String sourceId, OccupancyCounters counters) {
+            this.feed = feed;
+            this.sourceId = sourceId;
+            this.counters = counters;
+        }
+
+        public Subscription subscribe(FreeCountListener listener) {
+            Subscription subscription = new Subscription(this, listener);
+            subscriptions.add(subscription);
+            markDirty(); // New board gets the current counts next round
+            return subscription;
+        }
+
+        void markDirty() {
+            if (!queued.get() && !subscriptions.isEmpty() && queued.compareAndSet(false, true))
+                feed.offer(this);
+        }
+
+        private void publish() {
+            for (int type = 0; type < SPOT_TYPES.length; type++)
+                freeCounts[type] = counters.getAvailableCount(SPOT_TYPES[type]);
+            for (Subscription subscription : subscriptions)
+                subscription.send(freeCounts);
+        }
+    }
+
+    public static final class Subscription implements AutoCloseable {
+        private final Source source;
+        private final FreeCountListener listener;
+        private final int[] lastSent = new int[SPOT_TYPES.length];
+        private final int[] freeCounts = new int[SPOT_TYPES.length]; // Handed to the listener
+        private boolean sent;
+
+        private Subscription(Source source, FreeCountListener listener) {
+            this.source = source;
+            this.listener = listener;
+        }
+
+        private void send(int[] current) {
+            if (sent && Arrays.equals(lastSent, current))
+                return;
+            System.arraycopy(current, 0, lastSent, 0, current.length);
+            System.arraycopy(current, 0, freeCounts, 0, current.length);
+            sent = true;
+            try {
+                listener.onFreeCounts(source.getSourceId(), freeCounts);
+                source.getFeed().published.increment();
+            } catch (RuntimeException e) {
+                // A broken board must not stop the feed thread (nor the updates of the other boards). Its counts are
+                // sent again on the next change, even if they are the same.
+                source.getFeed().listenerErrors.increment();
+                source.getFeed().lastListenerError = e;
+                sent = false;
+            }
+        }
+
+        @Override
+        public void close() {
+            source.subscriptions.remove(this);
+        }
+    }
+
+    private static class Shared {
+        private static final FreeCountFeed FEED = new FreeCountFeed(1, TimeUnit.SECONDS);
+    }
+}
+
+
+/************************************************** Clock ************************************************************/
+
+/*
+Where a lot reads the time of day. Tickets, pay station pricing, payments, reservation deadlines & analytics windows
+all go through the ClockSource of their lot (ParkingLot.setClockSource()), so a simulation can push a whole day
+through the real gate code on a VirtualClockSource in seconds (see ParkingLotSimulator).
+Timeouts of the lot (reservation holds, admission waits) are scheduled on the clock too: on SYSTEM they go to the
+shared timing wheel, on a VirtualClockSource they fire as the clock is moved past them.
+Latency timings (System.nanoTime()), ticket id timestamps & the other background threads (payment settler, snapshots)
+stay on the real clock, they measure the machine & not the day being simulated.
+*/
+interface ClockSource {
+    ClockSource SYSTEM = System::currentTimeMillis;
+
+    long currentTimeMillis();
+
+    // Runs task once delay has passed on this clock. Cancel the Timeout to drop it.
+    default HashedTimingWheel.Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return ParkingLot.getTimeoutWheel().schedule(task, delay, unit);
+    }
+
+    default long currentEpochSecond() {
+        return currentTimeMillis() / 1000;
+    }
+
+    // Display only (payments), like ParkingTicket.getIssuedAt()
+    default LocalDateTime now() {
+        long millis = currentTimeMillis();
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L), (int) Math.floorMod(millis, 1000L) * 1_000_000,
+                TariffTable.systemOffset());
+    }
+}
+
+/*
+Clock that only moves when told to. Shared by every thread of a simulation, it never goes back: advanceTo() a time
+already passed is a no-op, so a slow thread can't rewind the clock under the others.
+Timeouts scheduled on it wait in a heap ordered by due time, & run on the thread that moves the clock past them (in due
+order, after the move). So a hold of 15 minutes expires after 15 simulated minutes, however long that takes for real.
+A timeout left when the clock stops moving never fires.
+*/
+class VirtualClockSource implements ClockSource {
+    private final AtomicLong nowMillis;
+    private final PriorityQueue<DueTimeout> timeouts = new PriorityQueue<>(); // Guarded by itself
+    private long timeoutSequence; // Guarded by timeouts, same due time: scheduling order
+    @Getter
+    private final LongAdder failedTasks = new LongAdder();
+
+    public VirtualClockSource(long startMillis) {
+        this.nowMillis = new AtomicLong(startMillis);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return nowMillis.get();
+    }
+
+    @Override
+    public HashedTimingWheel.Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        HashedTimingWheel.Timeout timeout = HashedTimingWheel.newTimeout(task);
+        synchronized (timeouts) {
+            timeouts.add(new DueTimeout(nowMillis.get() + unit.toMillis(delay), timeoutSequence++, timeout));
+        }
+        return timeout;
+    }
+
+    public long advance(long millis) {
+        return runDue(nowMillis.addAndGet(millis));
+    }
+
+    public long advanceTo(long millis) {
+        return runDue(nowMillis.accumulateAndGet(millis, Math::max));
+    }
+
+    // Cancelled timeouts are dropped when they come up, like on the wheel
+    private long runDue(long now) {
+        while (true) {
+            HashedTimingWheel.Timeout timeout;
+            synchronized (timeouts) {
+                DueTimeout head = timeouts.peek();
+                if (head == null || head.dueMillis > now)
+                    return now;
+                timeout = timeouts.poll().timeout;
+            }
+            try {
+                timeout.expire();
+            } catch (RuntimeException e) { // Counted like a failing task of the wheel, the clock keeps moving
+                failedTasks.increment();
+            }
+        }
+    }
+
+    private static final class DueTimeout implements Comparable<DueTimeout> {
+        private final long dueMillis;
+        private final long sequence;
+        private final HashedTimingWheel.Timeout timeout;
+
+        private DueTimeout(long dueMillis, long sequence, HashedTimingWheel.Timeout timeout) {
+            this.dueMillis = dueMillis;
+            this.sequence = sequence;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int compareTo(DueTimeout other) {
+            return dueMillis != other.dueMillis ? Long.compare(dueMillis, other.dueMillis)
+                    : Long.compare(sequence, other.sequence);
+        }
+    }
+}
+
+/************************************************** Ids **************************************************************/
+
+/*
+Pluggable id generator for tickets & payments.
+Earlier ids were UUID.randomUUID(): that goes through one shared SecureRandom, and every id is a 36 character String
+that we store, index and print.
+*/
+interface IdGenerator {
+    long nextId();
+}
+
+/*
+Snowflake style, time ordered 64 bit ids:
+| 1 bit unused | 41 bits millis since EPOCH | 10 bits node id | 12 bits sequence within the milli |
+
+Every panel owns its own generator with its own node id, so panels never share any state for ids. Inside one generator
+the (millis) pair is kept in a single AtomicLong and moved forward with CAS, so there is no lock either.
+If the sequence of a milli runs out (4096 ids) or the clock goes backwards, we borrow the next milli instead of waiting,
+so ids stay unique & ordered.
+*/
+class SnowflakeIdGenerator implements IdGenerator {
+    private static final long EPOCH_MILLIS = 1640995200000L; // 2022-01-01T00:00:00Z, gives ~69 years of ids
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    // Hands out node ids to panels created in this JVM. Only touched when a generator is created.
+    private static final AtomicInteger NEXT_NODE_ID = new AtomicInteger();
+
+    private final long nodeId;
+    private final AtomicLong lastTimestampAndSequence = new AtomicLong(); // (millis << SEQUENCE_BITS) | sequence
+
+    public SnowflakeIdGenerator(long nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID)
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID);
+        this.nodeId = nodeId;
+    }
+
+    // Node ids wrap after 1024 generators, pass explicit node ids when a JVM has more panels than that
+    public static SnowflakeIdGenerator forNextNode() {
+        return new SnowflakeIdGenerator(NEXT_NODE_ID.getAndIncrement() & MAX_NODE_ID);
+    }
+
+    @Override
+    public long nextId() {
+        while (true) {
+            long last = lastTimestampAndSequence.get();
+            long lastMillis = last >>> SEQUENCE_BITS;
+            long nowMillis = System.currentTimeMillis() - EPOCH_MILLIS;
+            long next;
+            if (nowMillis > lastMillis)
+                next = nowMillis << SEQUENCE_BITS;
+            else if ((last & SEQUENCE_MASK) < SEQUENCE_MASK)
+                next = last + 1;
+            else
+                next = (lastMillis + 1) << SEQUENCE_BITS;
+            if (lastTimestampAndSequence.compareAndSet(last, next)) {
+                long millis = next >>> SEQUENCE_BITS;
+                return (millis << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    // Ids are kept as long everywhere, they become Strings only when printed or scanned
+    public static String format(long id) {
+        return Long.toString(id, 36).toUpperCase();
+    }
+
+    public static long parse(String id) {
+        return Long.parseLong(id, 36);
+    }
+}
+
+
+/************************************************** Ticket ***********************************************************/
+
+enum TicketStatus {
+    ACTIVE, LOST
+}
+
+@Getter
+@Setter
+class ParkingTicket {
+    private long ticketId; // Kept numeric, getTicketNumber() is the printable form
+    private String licensePlateNumber;
+    private String allocatedSpotId;
+    private long issuedAtEpochSecond; // Epoch seconds, tariffs are computed straight on these
+    private long vacatedAtEpochSecond; // 0 while the ticket is active
+    private double charges;
+    private TicketStatus ticketStatus;
+
+    public String getTicketNumber() {
+        return SnowflakeIdGenerator.format(ticketId);
+    }
+
+    // Display only, nothing on the gate path converts to LocalDateTime
+    public LocalDateTime getIssuedAt() {
+        return LocalDateTime.ofEpochSecond(issuedAtEpochSecond, 0, TariffTable.systemOffset());
+    }
+}
+
+/*
+Per vehicle (entry) or per ticket (exit) result of a batch call on EntrancePanel / ExitPanel.
+*/
+@Getter
+@AllArgsConstructor
+class TicketResult {
+    private final Vehicle vehicle; // null for exits
+    private final ParkingTicket parkingTicket; // null when no spot could be given to the vehicle
+    private final boolean success;
+}
+
+@Getter
+class EntrancePanel {
+    private String id;
+    private final IdGenerator ticketIdGenerator; // Own generator per panel, panels don't share any state for ids
+    @Setter
+    private ParkingLot parkingLot; // Lot this panel belongs to, set when the panel is added to the lot
+    @Setter
+    private volatile SpotLease spotLease; // Spots claimed ahead for this entrance, null unless the lot leases
+
+    public EntrancePanel(String id) {
+        this(id, SnowflakeIdGenerator.forNextNode());
+    }
+
+    public EntrancePanel(String id, IdGenerator ticketIdGenerator) {
+        this.id = id;
+        this.ticketIdGenerator = ticketIdGenerator;
+    }
+
+    public ParkingTicket getParkingTicket(Vehicle vehicle) {
+        long start = System.nanoTime();
+        // Vehicles of this type are waiting in the admission queue: the next free spot is theirs, this vehicle is
+        // refused like at a full lot & doesn't jump the queue (awaitParkingTicket() queues it).
+        if (parkingLot.getAdmissionQueue().hasWaiters(vehicle.getType())) {
+            parkingLot.getMetrics().recordRejection(vehicle.getType());
+            return null;
+        }
+        // No canPark() check first: that would be a check-then-act race with the other panels.
+        SpotLease lease = spotLease;
+        ParkingSpot parkingSpot = lease == null ? null : lease.take(vehicle.getType());
+        if (parkingSpot != null)
+            parkingSpot.assignVehicleToSpot(vehicle.getLicenseNumber());
+        else
+            parkingSpot = parkingLot.tryAllocate(vehicle, id);
+        if (parkingSpot == null) {
+            parkingLot.getMetrics().recordRejection(vehicle.getType());
+            return null;
+        }
+        ParkingTicket parkingTicket = buildTicket(vehicle.getLicenseNumber(), parkingSpot.getParkingSpotId());
+        parkingLot.addActiveTicket(parkingTicket);
+        parkingLot.getMetrics().getTicketIssueLatency().record(System.nanoTime() - start);
+        return parkingTicket;
+    }
+
+    /*
+    Holder of a reservation arrives: the ticket is for the held spot. null when the reservation is not active anymore
+    (expired, cancelled, already used), the vehicle can still get a ticket the normal way.
+    */
+    public ParkingTicket getParkingTicket(Vehicle vehicle, long reservationId) {
+        ParkingSpot parkingSpot = parkingLot.claimReservation(reservationId, vehicle);
+        if (parkingSpot == null)
+            return null;
+        ParkingTicket parkingTicket = buildTicket(vehicle.getLicenseNumber(), parkingSpot.getParkingSpotId());
+        parkingLot.addActiveTicket(parkingTicket);
+        return parkingTicket;
+    }
+
+    /*
+    Full lot: the vehicle waits in the lot admission queue (ParkingLot.awaitParkingSpot()) instead of the gate
+    polling. Completes with the ticket when an exit hands it a spot, with null when the queue is full or maxWait ran
+    out. Cancelling the returned future gives the place up (driver left); a spot that came at the same time goes to
+    the next waiter.
+    */
+    public CompletableFuture<ParkingTicket> awaitParkingTicket(Vehicle vehicle, long maxWait, TimeUnit unit) {
+        CompletableFuture<ParkingSpot> spotFuture = parkingLot.awaitParkingSpot(vehicle, id, maxWait, unit);
+        CompletableFuture<ParkingTicket> ticketFuture = spotFuture.thenApply(parkingSpot -> {
+            if (parkingSpot == null) {
+                parkingLot.getMetrics().recordRejection(vehicle.getType());
+                return null;
+            }
+            ParkingTicket parkingTicket = buildTicket(vehicle.getLicenseNumber(), parkingSpot.getParkingSpotId());
+            parkingLot.addActiveTicket(parkingTicket);
+            return parkingTicket;
+        });
+        ticketFuture.whenComplete((parkingTicket, e) -> {
+            // Cancel of the ticket future doesn't reach spotFuture by itself. Already completed: no ticket was issued.
+            if (ticketFuture.isCancelled() && !spotFuture.cancel(false)) {
+                ParkingSpot parkingSpot = spotFuture.join();
+                if (parkingSpot != null)
+                    parkingLot.vacateParkingSpot(parkingSpot.getParkingSpotId());
+            }
+        });
+        return ticketFuture;
+    }
+
+    public List<TicketResult> getParkingTickets(List<Vehicle> vehicles) {
+        return getParkingTickets(vehicles, false);
+    }
+
+    /*
+    Batch ticket issuance, for event surges (stadium lets out, event starts).
+    - Vehicles are grouped by ParkingSpotType and every group claims its spots in one pass (one lock acquisition per
+      floor for strategies that lock), instead of one claim per vehicle.
+    - Clock is read once for the whole batch.
+    - Result is per vehicle, in the same order as vehicles. With allOrNothing, if any vehicle can't get a spot, every
+      spot claimed for the batch is given back and no ticket is issued.
+    */
+    public List<TicketResult> getParkingTickets(List<Vehicle> vehicles, boolean allOrNothing) {
+        Map<ParkingSpotType, List<Integer>> vehiclesBySpotType = new EnumMap<>(ParkingSpotType.class);
+        for (int i = 0; i < vehicles.size(); i++) {
+            ParkingSpotType parkingSpotType = ParkingFloor.getSpotTypeForVehicle(vehicles.get(i).getType());
+            vehiclesBySpotType.computeIfAbsent(parkingSpotType, type -> new ArrayList<>()).add(i);
+        }
+
+        ParkingSpot[] spotForVehicle = new ParkingSpot[vehicles.size()];
+        List<ParkingSpot> claimed = new ArrayList<>(vehicles.size());
+        for (Map.Entry<ParkingSpotType, List<Integer>> entry : vehiclesBySpotType.entrySet()) {
+            List<Integer> vehicleIndexes = entry.getValue();
+            int from = claimed.size();
+            int claimedCount = parkingLot.getParkingSpots(entry.getKey(), vehicleIndexes.size(), id, claimed);
+            for (int i = 0; i < claimedCount; i++)
+                spotForVehicle[vehicleIndexes.get(i)] = claimed.get(from + i);
+        }
+
+        if (allOrNothing && claimed.size() < vehicles.size()) {
+            for (ParkingSpot parkingSpot : claimed)
+                parkingLot.vacateParkingSpot(parkingSpot.getParkingSpotId());
+            Arrays.fill(spotForVehicle, null);
+        }
+
+        long issuedAt = parkingLot.getClockSource().currentEpochSecond();
+        List<TicketResult> results = new ArrayList<>(vehicles.size());
+        for (int i = 0; i < vehicles.size(); i++) {
+            Vehicle vehicle = vehicles.get(i);
+            ParkingSpot parkingSpot = spotForVehicle[i];
+            if (parkingSpot == null) {
+                parkingLot.getMetrics().recordRejection(vehicle.getType());
+                results.add(new TicketResult(vehicle, null, false));
+                continue;
+            }
+            parkingSpot.assignVehicleToSpot(vehicle.getLicenseNumber());
+            ParkingTicket parkingTicket =
+                    buildTicket(vehicle.getLicenseNumber(), parkingSpot.getParkingSpotId(), issuedAt);
+            parkingLot.addActiveTicket(parkingTicket);
+            results.add(new TicketResult(vehicle, parkingTicket, true));
+        }
+        return results;
+    }
+
+    private ParkingTicket buildTicket(String vehicleLicenseNumber, String parkingSpotId) {
+        return buildTicket(vehicleLicenseNumber, parkingSpotId, parkingLot.getClockSource().currentEpochSecond());
+    }
+
+    private ParkingTicket buildTicket(String vehicleLicenseNumber, String parkingSpotId, long issuedAt) {
+        ParkingTicket parkingTicket = new ParkingTicket();
+        parkingTicket.setIssuedAtEpochSecond(issuedAt);
+        parkingTicket.setAllocatedSpotId(parkingSpotId);
+        parkingTicket.setLicensePlateNumber(vehicleLicenseNumber);
+        parkingTicket.setTicketId(ticketIdGenerator.nextId());
+        parkingTicket.setTicketStatus(TicketStatus.ACTIVE);
+        return parkingTicket;
+    }
+    // Ticket ids: see SnowflakeIdGenerator
+}
+
+@Getter
+class ExitPanel {
+    private String id;
+    @Setter
+    private ParkingLot parkingLot; // Lot this panel belongs to, set when the panel is added to the lot
+
+    public ExitPanel(String id) {
+        this.id = id;
+    }
+
+    public ParkingTicket scanAndVacate(ParkingTicket parkingTicket) {
+        vacate(parkingTicket, parkingLot.getClockSource().currentEpochSecond());
+        return parkingTicket;
+    }
+
+    /*
+    Batch vacate, matching EntrancePanel.getParkingTickets(). Clock is read once for the whole batch.
+    Result is per ticket, in the same order; success is false for a ticket whose spot was already free.
+    */
+    public List<TicketResult> scanAndVacate(List<ParkingTicket> parkingTickets) {
+        long vacatedAt = parkingLot.getClockSource().currentEpochSecond();
+        List<TicketResult> results = new ArrayList<>(parkingTickets.size());
+        for (ParkingTicket parkingTicket : parkingTickets)
+            results.add(new TicketResult(null, parkingTicket, vacate(parkingTicket, vacatedAt)));
+        return results;
+    }
+
+    /*
+    The ticket is closed first and the spot is freed after that. Closing the ticket is what decides which exit wins
+    when the same ticket is scanned twice, and it also puts the vacate in the journal before another vehicle can be
+    given this spot. The charge is only priced here, the winner writes it on the ticket (losing scans change nothing).
+    */
+    private boolean vacate(ParkingTicket parkingTicket, long vacatedAt) {
+        long start = System.nanoTime();
+        SpotLocation spotLocation = parkingLot.getSpotLocation(parkingTicket.getAllocatedSpotId());
+        if (spotLocation == null)
+            return false;
+        ParkingSpotType parkingSpotType = spotLocation.getParkingSpot().getParkingSpotType();
+        TariffEngine tariffEngine = parkingLot.getTariffEngine();
+        double charges = parkingTicket.getTicketStatus() == TicketStatus.LOST
+                ? tariffEngine.calculateLostTicketCost(parkingSpotType, parkingTicket.getIssuedAtEpochSecond(), vacatedAt)
+                : tariffEngine.calculateCost(parkingSpotType, parkingTicket.getIssuedAtEpochSecond(), vacatedAt);
+        if (!parkingLot.closeActiveTicket(parkingTicket, vacatedAt, charges))
+            return false;
+        parkingLot.vacateParkingSpot(parkingTicket.getAllocatedSpotId());
+        parkingLot.getMetrics().getExitLatency().record(System.nanoTime() - start);
+        return true;
+    }
+
+    // When only the ticket number is scanned
+    public ParkingTicket scanAndVacate(String ticketNumber) {
+        ParkingTicket parkingTicket = parkingLot.getActiveTicket(ticketNumber);
+        if (parkingTicket == null)
+            return null;
+        return scanAndVacate(parkingTicket);
+    }
+
+    // Exit camera read the plate, no ticket scanned. Regular charges, null if that plate is not parked here.
+    public ParkingTicket scanPlateAndVacate(String licensePlateNumber) {
+        ParkingTicket parkingTicket = parkingLot.getActiveTicketByPlate(licensePlateNumber);
+        if (parkingTicket == null)
+            return null;
+        return scanAndVacate(parkingTicket);
+    }
+
+    // Driver has no ticket: found by plate, charged the stay plus the lost ticket fee of the spot type
+    public ParkingTicket vacateLostTicket(String licensePlateNumber) {
+        ParkingTicket parkingTicket = parkingLot.reportLostTicket(licensePlateNumber);
+        if (parkingTicket == null)
+            return null;
+        return scanAndVacate(parkingTicket);
+    }
+    // Charges: see TariffEngine
+}
+
+@Getter
+class HourlyCost {
+    private Map<ParkingSpotType, Double> hourlyCosts = new HashMap<>();
+
+    public HourlyCost() {
+        hourlyCosts.put(ParkingSpotType.COMPACT, 20.0);
+        hourlyCosts.put(ParkingSpotType.LARGE, 30.0);
+        hourlyCosts.put(ParkingSpotType.ELECTRIC, 25.0);
+        hourlyCosts.put(ParkingSpotType.MOTORBIKE, 10.0);
+        hourlyCosts.put(ParkingSpotType.HANDICAPPED, 25.0);
+    }
+
+    public double getCost(ParkingSpotType parkingSpotType) {
+        return hourlyCosts.get(parkingSpotType);
+    }
+}
+
+/*
+Pricing rules of one ParkingSpotType, as the operator writes them. Only hourlyRate is required, the other rates fall
+back to it when left null. Night hours are [nightStartHour, nightEndHour) in local time and can wrap past midnight,
+night rate wins over weekend rate. dailyCap is applied per 24 hours from the entry time. lostTicketFee is added on top
+of the stay when the vehicle leaves without its ticket (found by plate, see ExitPanel.vacateLostTicket()).
+These are compiled into a TariffTable, nothing reads them on the exit path.
+*/
+@Getter
+@Setter
+class TariffRule {
+    private double hourlyRate;
+    private Double firstHourRate;
+    private Double nightRate;
+    private int nightStartHour = 22;
+    private int nightEndHour = 6;
+    private Double weekendRate;
+    private Double dailyCap;
+    private double lostTicketFee;
+
+    public TariffRule(double hourlyRate) {
+        this.hourlyRate = hourlyRate;
+    }
+}
+
+/*
+Immutable, precompiled tariff. Exit used to build a new HourlyCost (a HashMap with boxed Doubles) per vehicle and go
+through Duration, now it is a few array reads on epoch seconds, no allocation.
+
+Everything is indexed by ParkingSpotType.ordinal() & hour of the week (0 = Monday 00:00 local time):
+- hourPrefix[type][h] : sum of the hourly rates of hours [0, h), over two weeks, so any run of hours that wraps past
+                        Sunday night is still one subtraction
+- dayCost[type][h]    : cost of a full 24 hour block starting at hour h, daily cap already applied
+- weekCost[type][h]   : cost of 7 full blocks starting at hour h (a week later we are back at hour h)
+So the cost is: first block (first hour rate + rest of the block, capped) + full weeks + up to 6 full days + last
+partial block (capped). That's constant time whatever the stay length.
+
+Local time uses a fixed ZoneOffset, no ZoneRules lookup per exit. On a DST change the operator compiles & swaps a new
+table with the new offset (see TariffEngine).
+Billed hours are the same as before: whole hours of the stay, minimum 1.
+*/
+final class TariffTable {
+    private static final int HOURS_PER_DAY = 24;
+    private static final int HOURS_PER_WEEK = 7 * HOURS_PER_DAY;
+    private static final int SECONDS_PER_HOUR = 3600;
+
+    private final long offsetSeconds;
+    private final double[] firstHourRate;
+    private final double[] dailyCap;
+    private final double[] lostTicketFee;
+    private final double[][] hourPrefix;
+    private final double[][] dayCost;
+    private final double[][] weekCost;
+
+    private TariffTable(ZoneOffset offset, int types) {
+        this.offsetSeconds = offset.getTotalSeconds();
+        this.firstHourRate = new double[types];
+        this.dailyCap = new double[types];
+        this.lostTicketFee = new double[types];
+        this.hourPrefix = new double[types][2 * HOURS_PER_WEEK + 1];
+        this.dayCost = new double[types][HOURS_PER_WEEK];
+        this.weekCost = new double[types][HOURS_PER_WEEK];
+    }
+
+    // Same prices as HourlyCost: flat hourly rate, no first hour / night / weekend rate, no cap
+    public static TariffTable flat(HourlyCost hourlyCost) {
+        Map<ParkingSpotType, TariffRule> rules = new EnumMap<>(ParkingSpotType.class);
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values())
+            rules.put(parkingSpotType, new TariffRule(hourlyCost.getCost(parkingSpotType)));
+        return compile(rules, systemOffset());
+    }
+
+    public static TariffTable compile(Map<ParkingSpotType, TariffRule> rules, ZoneOffset offset) {
+        TariffTable table = new TariffTable(offset, ParkingSpotType.values().length);
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            TariffRule rule = rules.get(parkingSpotType);
+            if (rule == null)
+                throw new IllegalArgumentException("No tariff rule for " + parkingSpotType);
+            int type = parkingSpotType.ordinal();
+            table.firstHourRate[type] = orElse(rule.getFirstHourRate(), rule.getHourlyRate());
+            table.dailyCap[type] = orElse(rule.getDailyCap(), Double.POSITIVE_INFINITY);
+            table.lostTicketFee[type] = rule.getLostTicketFee();
+
+            double[] prefix = table.hourPrefix[type];
+            for (int h = 0; h < 2 * HOURS_PER_WEEK; h++)
+                prefix[h + 1] = prefix[h] + rateAt(rule, h % HOURS_PER_WEEK);
+            for (int h = 0; h < HOURS_PER_WEEK; h++)
+                table.dayCost[type][h] = table.blockCost(type, h, HOURS_PER_DAY);
+            for (int h = 0; h < HOURS_PER_WEEK; h++)
+                for (int day = 0; day < 7; day++)
+                    table.weekCost[type][h] += table.dayCost[type][(h + day * HOURS_PER_DAY) % HOURS_PER_WEEK];
+        }
+        return table;
+    }
+
+    private static double rateAt(TariffRule rule, int hourOfWeek) {
+        int hourOfDay = hourOfWeek % HOURS_PER_DAY;
+        boolean night = rule.getNightStartHour() <= rule.getNightEndHour()
+                ? hourOfDay >= rule.getNightStartHour() && hourOfDay < rule.getNightEndHour()
+                : hourOfDay >= rule.getNightStartHour() || hourOfDay < rule.getNightEndHour();
+        if (night && rule.getNightRate() != null)
+            return rule.getNightRate();
+        boolean weekend = hourOfWeek >= 5 * HOURS_PER_DAY;
+        if (weekend && rule.getWeekendRate() != null)
+            return rule.getWeekendRate();
+        return rule.getHourlyRate();
+    }
+
+    private static double orElse(Double value, double fallback) {
+        return value == null ? fallback : value;
+    }
+
+    static ZoneOffset systemOffset() {
+        return ZoneId.systemDefault().getRules().getOffset(Instant.now());
+    }
+
+    public double calculateCost(ParkingSpotType parkingSpotType, long entryEpochSecond, long exitEpochSecond) {
+        int type = parkingSpotType.ordinal();
+        long hours = Math.max(1, (exitEpochSecond - entryEpochSecond) / SECONDS_PER_HOUR);
+        int hour = hourOfWeek(entryEpochSecond);
+
+        int firstBlockHours = (int) Math.min(hours, HOURS_PER_DAY);
+        double cost = Math.min(dailyCap[type],
+                firstHourRate[type] + hourSum(type, (hour + 1) % HOURS_PER_WEEK, firstBlockHours - 1));
+        hours -= firstBlockHours;
+        hour = (hour + HOURS_PER_DAY) % HOURS_PER_WEEK; // Only used when hours are left, then the first block was full
+
+        long days = hours / HOURS_PER_DAY;
+        cost += (days / 7) * weekCost[type][hour];
+        for (long day = days % 7; day > 0; day--) {
+            cost += dayCost[type][hour];
+            hour = (hour + HOURS_PER_DAY) % HOURS_PER_WEEK;
+        }
+        int lastBlockHours = (int) (hours % HOURS_PER_DAY);
+        if (lastBlockHours > 0)
+            cost += blockCost(type, hour, lastBlockHours);
+        return cost;
+    }
+
+    public double getLostTicketFee(ParkingSpotType parkingSpotType) {
+        return lostTicketFee[parkingSpotType.ordinal()];
+    }
+
+    private double blockCost(int type, int hourOfWeek, int hours) {
+        return Math.min(dailyCap[type], hourSum(type, hourOfWeek, hours));
+    }
+
+    private double hourSum(int type, int hourOfWeek, int hours) {
+        return hourPrefix[type][hourOfWeek + hours] - hourPrefix[type][hourOfWeek];
+    }
+
+    // 1970-01-01 was a Thursday, i.e. day 3 of a week starting on Monday
+    private int hourOfWeek(long epochSecond) {
+        long local = epochSecond + offsetSeconds;
+        int dayOfWeek = (int) Math.floorMod(Math.floorDiv(local, 86400L) + 3, 7L);
+        int hourOfDay = (int) (Math.floorMod(local, 86400L) / SECONDS_PER_HOUR);
+        return dayOfWeek * HOURS_PER_DAY + hourOfDay;
+    }
+}
+
+/*
+Holds the TariffTable in use for a lot. Tariff changes (new prices, event pricing, DST offset) compile a new table
+off the exit path & swap it in with one volatile write. An exit reads the table once, so it is priced by either the
+old or the new table, never by a mix of both.
+*/
+class TariffEngine {
+    private volatile TariffTable tariffTable;
+
+    public TariffEngine(TariffTable tariffTable) {
+        this.tariffTable = tariffTable;
+    }
+
+    public TariffTable getTariffTable() {
+        return tariffTable;
+    }
+
+    public void swap(TariffTable tariffTable) {
+        this.tariffTable = tariffTable;
+    }
+
+    public double calculateCost(ParkingSpotType parkingSpotType, long entryEpochSecond, long exitEpochSecond) {
+        return tariffTable.calculateCost(parkingSpotType, entryEpochSecond, exitEpochSecond);
+    }
+
+    public double calculateLostTicketCost(ParkingSpotType parkingSpotType, long entryEpochSecond, long exitEpochSecond) {
+        TariffTable table = tariffTable;
+        return table.calculateCost(parkingSpotType, entryEpochSecond, exitEpochSecond)
+                + table.getLostTicketFee(parkingSpotType);
+    }
+}
+
+/************************************************** Reservation ******************************************************/
+
+enum ReservationStatus {
+    ACTIVE, FULFILLED, CANCELLED, EXPIRED
+}
+
+/*
+Spot held for a holder (monthly pass, pre-booking). Made by ParkingLot.reserveParkingSpot(), the status only moves
+once, from ACTIVE to one of the others (CAS), see ParkingLot.claimReservation().
+*/
+@Getter
+class Reservation {
+    private final long reservationId;
+    private final String holderId;
+    private final VehicleType vehicleType;
+    private final ParkingSpot parkingSpot;
+    private final long expiresAtMillis;
+    private final AtomicReference<ReservationStatus> status = new AtomicReference<>(ReservationStatus.ACTIVE);
+    @Setter
+    private volatile HashedTimingWheel.Timeout expiry;
+
+    public Reservation(long reservationId, String holderId, VehicleType vehicleType, ParkingSpot parkingSpot,
+                       long expiresAtMillis) {
+        this.reservationId = reservationId;
+        this.holderId = holderId;
+        this.vehicleType = vehicleType;
+        this.parkingSpot = parkingSpot;
+        this.expiresAtMillis = expiresAtMillis;
+    }
+
+    public String getReservationNumber() {
+        return SnowflakeIdGenerator.format(reservationId);
+    }
+}
+
+/*
+Hashed timing wheel (Varghese & Lauck), for many timeouts that are mostly cancelled before they fire (holds that are
+used or cancelled), where one scheduled task per timeout would cost a heap entry & O(log n) per add / cancel.
+- The wheel is an array of buckets (power of 2), one bucket per tick. A timeout due in t ticks goes to bucket
+  (now + t) & mask, with t / wheelSize rounds to wait. Adding is O(1), cancelling is O(1) (a flag, the timeout is
+  unlinked when its bucket comes around).
+- One worker thread wakes up every tick and walks only the current bucket: fire the timeouts with 0 rounds left,
+  decrement the others. So a tick costs (outstanding timeouts / wheelSize), not the number of outstanding timeouts.
+- Other threads never touch the buckets: new timeouts go through a lock-free queue that the worker drains every tick.
+Precision is one tick, a timeout fires at most one tick late. Tasks run on the worker thread, they must be short.
+A task that throws doesn't stop the wheel: it is counted in failedTasks & kept as lastFailure, for metrics / health.
+*/
+class HashedTimingWheel implements AutoCloseable {
+    private final long tickNanos;
+    private final Timeout[] buckets; // Head of the list of every bucket, worker thread only
+    private final int mask;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean closed;
+    private long tick; // Worker thread only
+    @Getter
+    private final LongAdder failedTasks = new LongAdder();
+    @Getter
+    private volatile RuntimeException lastFailure;
+
+    public HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        int size = 1;
+        while (size < wheelSize)
+            size <<= 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (closed)
+            throw new IllegalStateException("Timing wheel is closed");
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(delay));
+        newTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    // Timeout that no wheel holds, for timers that keep their own deadlines (VirtualClockSource)
+    static Timeout newTimeout(Runnable task) {
+        return new Timeout(task, 0);
+    }
+
+    private void run() {
+        while (!closed) {
+            long tickDeadline = (tick + 1) * tickNanos;
+            long sleepNanos;
+            while ((sleepNanos = startNanos + tickDeadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(sleepNanos);
+                if (closed)
+                    return;
+            }
+            transferNewTimeouts();
+            expireBucket((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void transferNewTimeouts() {
+        for (Timeout timeout; (timeout = newTimeouts.poll()) != null; ) {
+            if (timeout.isCancelled())
+                continue;
+            long expiryTick = Math.max(timeout.deadlineNanos / tickNanos, tick); // Already due: fires this tick
+            timeout.remainingRounds = (expiryTick - tick) / buckets.length;
+            int bucket = (int) (expiryTick & mask);
+            timeout.next = buckets[bucket];
+            buckets[bucket] = timeout;
+        }
+    }
+
+    private void expireBucket(int bucket) {
+        Timeout previous = null;
+        for (Timeout timeout = buckets[bucket]; timeout != null; timeout = timeout.next) {
+            if (!timeout.isCancelled() && timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                previous = timeout;
+                continue;
+            }
+            if (previous == null)
+                buckets[bucket] = timeout.next;
+            else
+                previous.next = timeout.next;
+            try {
+                timeout.expire();
+            } catch (RuntimeException e) {
+                failedTasks.increment();
+                lastFailure = e;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(worker);
+    }
+
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadlineNanos; // Relative to the wheel start
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds; // Worker thread only
+        private Timeout next; // Worker thread only
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        // false when the timeout already fired (or was cancelled)
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        void expire() {
+            if (state.compareAndSet(PENDING, EXPIRED))
+                task.run();
+        }
+    }
+}
+
+/************************************************** Payment ***********************************************************/
+
+enum PaymentStatus {
+    SUCCESS, FAILED
+}
+
+@Getter
+class Payment {
+    private long id;
+    private long ticketId;
+    private double amount;
+
+    @Setter
+    private LocalDateTime initiatedDate;
+    @Setter
+    private LocalDateTime completedDate;
+    @Setter
+    private PaymentStatus paymentStatus;
+    @Setter
+    private int attempts; // Gateway calls it took, see PaymentPipeline
+
+    public Payment(long id, long ticketId, double amount) {
+        this.id = id;
+        this.ticketId = ticketId;
+        this.amount = amount;
+    }
+
+    public void makePayment() {
+        this.initiatedDate = LocalDateTime.now();
+        this.paymentStatus = PaymentStatus.SUCCESS;
+        this.completedDate = LocalDateTime.now();
+    }
+}
+
+/*
+External payment gateway (card processor). Calls take hundreds of ms, so they are only made from PaymentPipeline,
+never on a gate thread.
+- authorize(): charges the amount. The idempotency key is the ticketId, a gateway that already charged a key returns
+  the earlier result instead of charging again. That's what makes retrying after a timeout safe.
+- settle(): captures a batch of authorized payments in one call.
+*/
+interface PaymentGateway {
+    void authorize(long idempotencyKey, double amount) throws PaymentGatewayException;
+
+    void settle(List<Payment> payments) throws PaymentGatewayException;
+}
+
+/*
+Local stand-in for a real gateway, to test throughput & retries.
+Latency is uniform in [minLatencyMillis, maxLatencyMillis]. With failureRate an authorize() call fails, and half of
+those failures happen after the charge went through (like a timeout on the response), so a retry without the
+idempotency key would charge twice. charges counts real charges, deduplicatedCharges counts the calls that the key
+turned into a no-op.
+*/
+@Getter
+class StubPaymentGateway implements PaymentGateway {
+    private final long minLatencyMillis;
+    private final long maxLatencyMillis;
+    private final double failureRate;
+    private final Map<Long, Double> charged = new ConcurrentHashMap<>();
+    private final LongAdder charges = new LongAdder();
+    private final LongAdder deduplicatedCharges = new LongAdder();
+    private final LongAdder settledBatches = new LongAdder();
+
+    public StubPaymentGateway(long minLatencyMillis, long maxLatencyMillis, double failureRate) {
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.failureRate = failureRate;
+    }
+
+    @Override
+    public void authorize(long idempotencyKey, double amount) throws PaymentGatewayException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (maxLatencyMillis > 0)
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(random.nextLong(minLatencyMillis, maxLatencyMillis + 1)));
+        boolean fail = random.nextDouble() < failureRate;
+        if (fail && random.nextBoolean())
+            throw new PaymentGatewayException("Gateway unavailable, key " + idempotencyKey);
+        if (charged.putIfAbsent(idempotencyKey, amount) == null)
+            charges.increment();
+        else
+            deduplicatedCharges.increment();
+        if (fail)
+            throw new PaymentGatewayException("Gateway timed out after charging, key " + idempotencyKey);
+    }
+
+    @Override
+    public void settle(List<Payment> payments) {
+        settledBatches.increment();
+    }
+}
+
+/*
+Non-blocking payments. submit() returns right away with a future, the gateway call runs in the background:
+- Gateway calls run on virtual threads when the JVM has them (looked up by reflection, the code still builds on 17),
+  else on a fixed pool of maxInFlight daemon threads. Either way a Semaphore keeps at most maxInFlight calls open
+  at the gateway.
+- Failed authorize() calls are retried with exponential backoff, up to maxAttempts, always with the ticketId as the
+  idempotency key. A ticket that is already in the pipeline gets the future of the first submit, not a 2nd payment.
+- Authorized payments are queued and settled in batches (one settle() call per batch, from one thread) every
+  settleIntervalMillis. The future completes after settlement, with SUCCESS, or FAILED once the retries run out.
+- Anything else the gateway throws (a bug, a RuntimeException of its client library) is not retried: the future
+  completes exceptionally. Whatever way the future completes, the ticket leaves pendingByTicket, so a later submit
+  for that ticket is a new payment and never gets a dead future.
+One pipeline per lot is enough (ParkingLot.getPaymentPipeline()), it holds threads: close() it with the lot.
+*/
+@Getter
+class PaymentPipeline implements AutoCloseable {
+    private static final long RETRY_BACKOFF_MILLIS = 50;
+    private static final int MAX_SETTLE_BATCH = 512;
+
+    private final ParkingLot parkingLot;
+    private final PaymentGateway paymentGateway;
+    private final int maxAttempts;
+    private final Semaphore inFlightPermits;
+    private final ExecutorService gatewayExecutor;
+    private final ScheduledExecutorService settler;
+    private final Map<Long, CompletableFuture<Payment>> pendingByTicket = new ConcurrentHashMap<>();
+    // With the future of their submit: pendingByTicket may not have it anymore (cancelled) or have a newer one
+    private final ConcurrentLinkedQueue<AuthorizedPayment> authorized = new ConcurrentLinkedQueue<>();
+    private final ParkingMetrics metrics; // Retries, failures & gateway latency go to the lot metrics
+
+    public PaymentPipeline(ParkingLot parkingLot, PaymentGateway paymentGateway) {
+        this(parkingLot, paymentGateway, 256, 3, 10);
+    }
+
+    public PaymentPipeline(ParkingLot parkingLot, PaymentGateway paymentGateway, int maxInFlight, int maxAttempts,
+                           long settleIntervalMillis) {
+        this.parkingLot = parkingLot;
+        this.paymentGateway = paymentGateway;
+        this.metrics = parkingLot.getMetrics();
+        this.maxAttempts = maxAttempts;
+        this.inFlightPermits = new Semaphore(maxInFlight);
+        this.gatewayExecutor = newGatewayExecutor(maxInFlight);
+        this.settler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-settler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        settler.scheduleWithFixedDelay(this::settle, settleIntervalMillis, settleIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static ExecutorService newGatewayExecutor(int maxInFlight) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(maxInFlight, runnable -> {
+                Thread thread = new Thread(runnable, "payment-gateway");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public CompletableFuture<Payment> submit(Payment payment) {
+        CompletableFuture<Payment> future = new CompletableFuture<>();
+        CompletableFuture<Payment> existing = pendingByTicket.putIfAbsent(payment.getTicketId(), future);
+        if (existing != null)
+            return existing;
+        future.whenComplete((completed, e) -> pendingByTicket.remove(payment.getTicketId(), future));
+        payment.setInitiatedDate(parkingLot.getClockSource().now());
+        try {
+            gatewayExecutor.execute(() -> {
+                try {
+                    authorize(payment, future);
+                } catch (Throwable e) {
+                    fail(payment, future, e);
+                }
+            });
+        } catch (RejectedExecutionException e) { // Pipeline closed
+            fail(payment, future, e);
+        }
+        return future;
+    }
+
+    private void fail(Payment payment, CompletableFuture<Payment> future, Throwable e) {
+        metrics.getFailedPayments().increment();
+        payment.setPaymentStatus(PaymentStatus.FAILED);
+        future.completeExceptionally(e);
+    }
+
+    private void authorize(Payment payment, CompletableFuture<Payment> future) {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            payment.setAttempts(attempt);
+            inFlightPermits.acquireUninterruptibly();
+            long start = System.nanoTime();
+            try {
+                paymentGateway.authorize(payment.getTicketId(), payment.getAmount());
+                authorized.offer(new AuthorizedPayment(payment, future));
+                return;
+            } catch (PaymentGatewayException e) {
+                // Permit is given back before the backoff, a waiting payment can use the gateway meanwhile
+            } finally {
+                metrics.getGatewayLatency().record(System.nanoTime() - start);
+                inFlightPermits.release();
+            }
+            if (attempt < maxAttempts) {
+                metrics.getPaymentRetries().increment();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_BACKOFF_MILLIS << (attempt - 1)));
+            }
+        }
+        metrics.getFailedPayments().increment();
+        payment.setPaymentStatus(PaymentStatus.FAILED);
+        complete(payment, future);
+    }
+
+    private void settle() {
+        List<AuthorizedPayment> batch = new ArrayList<>();
+        List<Payment> payments = new ArrayList<>();
+        while (true) {
+            batch.clear();
+            payments.clear();
+            for (AuthorizedPayment authorizedPayment;
+                 batch.size() < MAX_SETTLE_BATCH && (authorizedPayment = authorized.poll()) != null; ) {
+                batch.add(authorizedPayment);
+                payments.add(authorizedPayment.payment);
+            }
+            if (batch.isEmpty())
+                return;
+            try {
+                paymentGateway.settle(payments);
+            } catch (PaymentGatewayException | RuntimeException e) {
+                // Authorized payments stay authorized, next run settles them again. Not rethrown: a scheduled task
+                // that throws is never run again.
+                authorized.addAll(batch);
+                return;
+            }
+            for (AuthorizedPayment authorizedPayment : batch) {
+                authorizedPayment.payment.setPaymentStatus(PaymentStatus.SUCCESS);
+                complete(authorizedPayment.payment, authorizedPayment.future);
+            }
+        }
+    }
+
+    private void complete(Payment payment, CompletableFuture<Payment> future) {
+        payment.setCompletedDate(parkingLot.getClockSource().now());
+        try {
+            parkingLot.paymentCompleted(payment);
+        } finally { // A throwing listener still completes the future
+            // Removed before completing, so a retry of a FAILED payment from the callback is a new submit
+            pendingByTicket.remove(payment.getTicketId(), future);
+            future.complete(payment);
+        }
+    }
+
+    public int getPendingCount() {
+        return pendingByTicket.size();
+    }
+
+    private static final class AuthorizedPayment {
+        private final Payment payment;
+        private final CompletableFuture<Payment> future;
+
+        private AuthorizedPayment(Payment payment, CompletableFuture<Payment> future) {
+            this.payment = payment;
+            this.future = future;
+        }
+    }
+
+    // Stops taking gateway work & settles whatever was already authorized
+    @Override
+    public void close() {
+        gatewayExecutor.shutdown();
+        try {
+            gatewayExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        settler.shutdown();
+        settle();
+    }
+}
+
+@Getter
+class PaymentPortal {
+    private String id;
+    private final IdGenerator paymentIdGenerator;
+    private final ParkingLot parkingLot; // Lot this portal belongs to
+    private final PaymentPipeline paymentPipeline;
+
+    // Without a pipeline the portal uses the one of the lot, shared by all its portals
+    public PaymentPortal(String id, ParkingLot parkingLot) {
+        this(id, parkingLot, parkingLot.getPaymentPipeline());
+    }
+
+    public PaymentPortal(String id, ParkingLot parkingLot, PaymentPipeline paymentPipeline) {
+        this(id, parkingLot, paymentPipeline, SnowflakeIdGenerator.forNextNode());
+    }
+
+    public PaymentPortal(String id, ParkingLot parkingLot, PaymentPipeline paymentPipeline,
+                         IdGenerator paymentIdGenerator) {
+        this.id = id;
+        this.parkingLot = parkingLot;
+        this.paymentPipeline = paymentPipeline;
+        this.paymentIdGenerator = paymentIdGenerator;
+    }
+
+    public Payment createPayment(ParkingTicket parkingTicket) {
+        return new Payment(paymentIdGenerator.nextId(), parkingTicket.getTicketId(), parkingTicket.getCharges());
+    }
+
+    /*
+    Pay before exit: prices a still active ticket up to now with the lot tariff & sets its charges.
+    The ticket is not closed here, ExitPanel does that. Returns -1 when the ticket is not active in this lot.
+    */
+    public double scanTicket(ParkingTicket parkingTicket) {
+        if (parkingLot.getActiveTicket(parkingTicket.getTicketId()) == null)
+            return -1;
+        SpotLocation spotLocation = parkingLot.getSpotLocation(parkingTicket.getAllocatedSpotId());
+        if (spotLocation == null)
+            return -1;
+        parkingTicket.setCharges(parkingLot.getTariffEngine().calculateCost(
+                spotLocation.getParkingSpot().getParkingSpotType(), parkingTicket.getIssuedAtEpochSecond(),
+                parkingLot.getClockSource().currentEpochSecond()));
+        return parkingTicket.getCharges();
+    }
+
+    // Gate code should use this, it does not wait for the gateway
+    public CompletableFuture<Payment> submitPayment(ParkingTicket parkingTicket) {
+        return paymentPipeline.submit(createPayment(parkingTicket));
+    }
+
+    // Waits for the gateway & settlement, for callers that can block (kiosk, admin tools)
+    public Payment makePayment(ParkingTicket parkingTicket) {
+        return submitPayment(parkingTicket).join();
+    }
+}
+
+/************************************************** Account ***********************************************************/
+
+/*
+This uses Global Address Model. (As we are implementing a generic Parking Lot System Software that can be used anywhere)
+*/
+@Getter
+@Setter
+class Address {
+    private String addressLine1;
+    private String addressLine2;
+    private String addressLine3;
+    private String street;
+    private String city;
+    private String state;
+    private String country;
+    private String pinCode;
+}
+
+/*
+Used only for Admin employ
+*/
+@Getter
+@Setter
+class PersonalInfo {
+    private String firstName;
+    private String lastName;
+    private String middleName;
+    private String initials;
+    private String dob;
+}
+
+class Person {
+}
+
+/*
+Contact is for people working at parking lot Administration.
+But can be applied on User as well.
+Lets Say some user wanted to park their vehicle for a month, In that case wee need their Contact.
+
+*/
+@Getter
+@Setter
+class Contact {
+    private String phone;
+    private String email;
+    private Address address;
+    private PersonalInfo personalInfo;
+}
+
+/*
+Account can be for Admin, as well as Users.
+Lets Say some user wanted to park their vehicle for a month, In that case wee need their contact and other details as well.
+*/
+@Getter
+@Setter
+abstract class Account {
+    private String id;
+    private String email;
+    private String userName;
+    private String password;
+    private LocalDateTime lastAccessed;
+    private Contact contact;
+}
+
+class Admin extends Account {
+    ParkingLotRepository parkingLotRepository = new ParkingLotRepository();
+    @Getter
+    private final ParkingLot parkingLot; // Lot this admin manages
+
+    public Admin(ParkingLot parkingLot) {
+        this.parkingLot = parkingLot;
+    }
+
+    /*
+    Addition is an idempotent operation.
+    Q. What is an idempotent operation?
+    A. An idempotent operation can be repeated an arbitrary number of times and the result will be the same as if it had been done only once.
+    In arithmetic, adding zero to a number is idempotent.
+    See: https://stackoverflow.com/questions/1077412/what-is-an-idempotent-operation
+    */
+
+    public void addParkingFloor(ParkingFloor parkingFloor) {
+        // ParkingLot checks in its floor index that is the parkingFloor already present or not, and adds it only if not.
+        parkingLot.addParkingFloor(parkingFloor);
+    }
+
+    /*
+    Floors are taken out in two steps while the lot stays open: drain (no new vehicles, parked ones leave as usual),
+    then remove once the last vehicle has left. Returns true once the floor is gone; call it again until then.
+    */
+    public boolean removeParkingFloor(String parkingFloorId) throws InvlaidParkingFloorException {
+        if (!parkingLot.drainParkingFloor(parkingFloorId))
+            throw new InvlaidParkingFloorException("Invalid floor");
+        return parkingLot.removeParkingFloor(parkingFloorId);
+    }
+
+    public void addParkingSpot(String parkingFloorId, ParkingSpot parkingSpot)
+            throws InvlaidParkingFloorException {
+
+        // parkingSpot can only be added in an existing parkingFloor, hence checking do we have the desired parkingFloor
+        ParkingFloor floor = parkingLot.getParkingFloor(parkingFloorId);
+
+        // If parkingFloor not present we just through exception & tell to try again with correct Parking Floor ID
+        if (floor == null)
+            throw new InvlaidParkingFloorException("Invalid floor");
+
+        // ParkingLot checks in its spot index that is the ParkingSpot already present or not, and adds it only if not.
+        parkingLot.addParkingSpot(floor, parkingSpot);
+    }
+
+    // EntrancePanel is at a parking lot level and not at Floor level
+    public void addEntrancePanel(EntrancePanel entrancePanel) {
+        // ParkingLot checks (case insensitive) that is the EntrancePanel already present or not, and adds it only if not.
+        parkingLot.addEntrancePanel(entrancePanel);
+    }
+
+    // ExitPanel is at a parking lot level and not at Floor level
+    public void addExitPanel(ExitPanel exitPanel) {
+        // ParkingLot checks (case insensitive) that is the ExitPanel already present or not, and adds it only if not.
+        parkingLot.addExitPanel(exitPanel);
+    }
+}
+
+/************************************************** Journal **********************************************************/
+
+/*
+Everything that changes the state of a ParkingLot is published to its listeners.
+Used by the journal to make the state durable, and open for anything else that wants to follow the lot.
+Listeners are called on the gate thread, so they must be cheap and must not block.
+*/
+interface ParkingEventListener {
+    default void onParkingFloorAdded(ParkingFloor parkingFloor) {
+    }
+
+    default void onParkingSpotAdded(ParkingFloor parkingFloor, ParkingSpot parkingSpot) {
+    }
+
+    default void onParkingFloorDrained(ParkingFloor parkingFloor) {
+    }
+
+    default void onParkingFloorRemoved(ParkingFloor parkingFloor) {
+    }
+
+    default void onEntrancePanelAdded(EntrancePanel entrancePanel) {
+    }
+
+    default void onExitPanelAdded(ExitPanel exitPanel) {
+    }
+
+    default void onTicketIssued(ParkingTicket parkingTicket, SpotLocation spotLocation) {
+    }
+
+    default void onTicketVacated(ParkingTicket parkingTicket, SpotLocation spotLocation) {
+    }
+
+    default void onPaymentCompleted(Payment payment) {
+    }
+}
+
+/*
+Append only journal of park, vacate, payment & admin events of one ParkingLot, so that a process restart doesn't lose
+every active ticket and every occupied spot.
+
+Gate path: a listener call only creates a small JournalEvent and adds it to the pending queue. The sequence number is
+taken in the same short critical section, so the queue is always in sequence order. It never touches the file, never
+waits for the disk, and never throws: once the journal is closed or has failed, events are dropped & counted.
+Writer thread: blocks until there are pending events, takes them all (swaps the queue), encodes them into one direct
+ByteBuffer, then does one FileChannel.write() and one force() for the batch (group commit). So the cost of a fsync is
+shared by every event that arrived while the previous batch was being written. As batches are in sequence order, the
+durable sequence only moves over records that are all on disk.
+flush() waits until everything appended so far is on disk, use it on shutdown.
+An IOException of the writer fails the journal for good: isFailed() / getFailure() & the journal.* metrics report it.
+So does anything else the writer throws, it never dies quietly.
+An event whose record would not fit in MAX_RECORD_BYTES (or a string over MAX_STRING_BYTES, the length is a short) is
+refused at append() & counted in oversizedEvents: a record the writer could not encode would fail the whole journal.
+
+Record layout: | int length of body | int CRC32 of body | body: byte type, long sequence, fields... |
+The CRC detects a record torn by a crash, recovery stops at the first bad record and the file is truncated there.
+Floor records carry the allocation strategy (& its entrance ids), spot records their entrance distances, so a floor is
+rebuilt with the strategy it had.
+
+Recovery: recover(lot) memory maps the file and replays it into a fresh ParkingLot: floors, spots, panels, which spots
+are used, and the active ParkingTickets. Attach the journal as listener only after recovery, so replay is not journaled
+again.
+*/
+class ParkingJournal implements ParkingEventListener, AutoCloseable {
+    private static final byte FLOOR_ADDED = 1;
+    private static final byte SPOT_ADDED = 2;
+    private static final byte ENTRANCE_PANEL_ADDED = 3;
+    private static final byte EXIT_PANEL_ADDED = 4;
+    private static final byte TICKET_ISSUED = 5;
+    private static final byte TICKET_VACATED = 6;
+    private static final byte PAYMENT_COMPLETED = 7;
+    private static final byte FLOOR_REMOVED = 8;
+    private static final byte FLOOR_DRAINED = 9;
+
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 64 * 1024; // Floors & spots with many entrances are the big ones
+    private static final int MAX_STRING_BYTES = Short.MAX_VALUE;
+    private static final int BATCH_BUFFER_BYTES = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final Object pendingLock = new Object();
+    private ArrayDeque<JournalEvent> pending = new ArrayDeque<>(); // Guarded by pendingLock, in sequence order
+    private boolean writerWaiting; // Guarded by pendingLock
+    private final AtomicLong sequence = new AtomicLong();
+    private final ByteBuffer batchBuffer = ByteBuffer.allocateDirect(BATCH_BUFFER_BYTES);
+    private final CRC32 crc = new CRC32();
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile long durableSequence; // Highest sequence such that it & everything before it is on disk
+    @Getter
+    private volatile IOException failure; // First write error, the journal takes no events after it
+    @Getter
+    private final LongAdder droppedEvents = new LongAdder(); // Events after close() or after a failure
+    @Getter
+    private final LongAdder oversizedEvents = new LongAdder(); // Events too big for a record, never written
+
+    public ParkingJournal(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long validBytes = scan(null);
+        channel.truncate(validBytes);
+        channel.position(validBytes);
+        writer = new Thread(this::writeLoop, "parking-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public long getLastSequence() {
+        return sequence.get();
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /************************************ Listener: gate path, only enqueues **************************************/
+
+    @Override
+    public void onParkingFloorAdded(ParkingFloor parkingFloor) {
+        JournalEvent event = new JournalEvent(FLOOR_ADDED, parkingFloor.getFloorId(), null, null,
+                ParkingSnapshot.DEQUE_STRATEGY, 0, 0);
+        SpotAllocationStrategy strategy = parkingFloor.getAllocationStrategy();
+        if (strategy instanceof NearestEntranceAllocationStrategy) {
+            event.firstNumber = ParkingSnapshot.NEAREST_ENTRANCE_STRATEGY;
+            event.names = ((NearestEntranceAllocationStrategy) strategy).getEntranceIds().toArray(new String[0]);
+        }
+        append(event);
+    }
+
+    @Override
+    public void onParkingSpotAdded(ParkingFloor parkingFloor, ParkingSpot parkingSpot) {
+        JournalEvent event = new JournalEvent(SPOT_ADDED, parkingFloor.getFloorId(), parkingSpot.getParkingSpotId(),
+                null, parkingSpot.getParkingSpotType().ordinal(), 0, 0);
+        Map<String, Integer> distances = new HashMap<>(parkingSpot.getEntranceDistances());
+        if (!distances.isEmpty()) {
+            event.names = new String[distances.size()];
+            event.values = new int[distances.size()];
+            int i = 0;
+            for (Map.Entry<String, Integer> distance : distances.entrySet()) {
+                event.names[i] = distance.getKey();
+                event.values[i++] = distance.getValue();
+            }
+        }
+        append(event);
+    }
+
+    @Override
+    public void onParkingFloorDrained(ParkingFloor parkingFloor) {
+        append(new JournalEvent(FLOOR_DRAINED, parkingFloor.getFloorId(), null, null, 0, 0, 0));
+    }
+
+    @Override
+    public void onParkingFloorRemoved(ParkingFloor parkingFloor) {
+        append(new JournalEvent(FLOOR_REMOVED, parkingFloor.getFloorId(), null, null, 0, 0, 0));
+    }
+
+    @Override
+    public void onEntrancePanelAdded(EntrancePanel entrancePanel) {
+        append(new JournalEvent(ENTRANCE_PANEL_ADDED, entrancePanel.getId(), null, null, 0, 0, 0));
+    }
+
+    @Override
+    public void onExitPanelAdded(ExitPanel exitPanel) {
+        append(new JournalEvent(EXIT_PANEL_ADDED, exitPanel.getId(), null, null, 0, 0, 0));
+    }
+
+    @Override
+    public void onTicketIssued(ParkingTicket parkingTicket, SpotLocation spotLocation) {
+        append(new JournalEvent(TICKET_ISSUED, parkingTicket.getAllocatedSpotId(),
+                parkingTicket.getLicensePlateNumber(), null, parkingTicket.getTicketId(),
+                parkingTicket.getIssuedAtEpochSecond(), 0));
+    }
+
+    @Override
+    public void onTicketVacated(ParkingTicket parkingTicket, SpotLocation spotLocation) {
+        append(new JournalEvent(TICKET_VACATED, parkingTicket.getAllocatedSpotId(), null, null,
+                parkingTicket.getTicketId(), parkingTicket.getVacatedAtEpochSecond(),
+                parkingTicket.getCharges()));
+    }
+
+    @Override
+    public void onPaymentCompleted(Payment payment) {
+        append(new JournalEvent(PAYMENT_COMPLETED, null, null, payment.getPaymentStatus().name(),
+                payment.getId(), payment.getTicketId(), payment.getAmount()));
+    }
+
+    // Never throws: the gate has already changed the lot when it tells the journal, so a lost event is only counted
+    private void append(JournalEvent event) {
+        if (closed || failure != null) {
+            droppedEvents.increment();
+            return;
+        }
+        if (event.encodedBytes() > MAX_RECORD_BYTES - HEADER_BYTES) {
+            oversizedEvents.increment();
+            return;
+        }
+        synchronized (pendingLock) {
+            if (closed || failure != null) {
+                droppedEvents.increment();
+                return;
+            }
+            event.sequence = sequence.incrementAndGet();
+            pending.add(event);
+            if (writerWaiting)
+                pendingLock.notify();
+        }
+    }
+
+    /************************************ Writer thread: group commit ********************************************/
+
+    private void writeLoop() {
+        ArrayDeque<JournalEvent> batch = new ArrayDeque<>();
+        while (true) {
+            synchronized (pendingLock) {
+                while (pending.isEmpty() && !closed) {
+                    writerWaiting = true;
+                    try {
+                        pendingLock.wait();
+                    } catch (InterruptedException e) {
+                        // Only close() stops the writer
+                    } finally {
+                        writerWaiting = false;
+                    }
+                }
+                if (pending.isEmpty())
+                    return; // Closed & everything written
+                ArrayDeque<JournalEvent> drained = pending;
+                pending = batch;
+                batch = drained;
+            }
+            try {
+                while (!batch.isEmpty()) {
+                    long highestSequence = 0;
+                    batchBuffer.clear();
+                    // As much of the batch as fits in the batch buffer, the rest goes in the next write
+                    while (!batch.isEmpty() && batchBuffer.remaining() >= MAX_RECORD_BYTES) {
+                        JournalEvent event = batch.poll();
+                        encode(event, batchBuffer);
+                        highestSequence = event.sequence;
+                    }
+                    batchBuffer.flip();
+                    while (batchBuffer.hasRemaining())
+                        channel.write(batchBuffer);
+                    channel.force(false);
+                    markDurable(highestSequence);
+                }
+            } catch (IOException e) {
+                fail(e, batch.size());
+                return;
+            } catch (RuntimeException e) { // A bug in encode(), same as a write error: reported, never a silent stop
+                fail(new IOException("Journal writer failed", e), batch.size());
+                return;
+            }
+        }
+    }
+
+    // Nothing sensible to do on the writer thread: the journal stops taking events & reports the failure
+    private void fail(IOException e, int unwritten) {
+        synchronized (pendingLock) {
+            failure = e;
+            droppedEvents.add(unwritten + pending.size());
+            pending.clear();
+        }
+        markDurable(Long.MAX_VALUE); // flush() must not wait for records that will never be written
+    }
+
+    private synchronized void markDurable(long highestSequence) {
+        durableSequence = Math.max(durableSequence, highestSequence);
+        notifyAll();
+    }
+
+    // Blocks until every event appended before this call is on disk. Throws if the journal failed meanwhile.
+    public synchronized void flush() throws InterruptedException, IOException {
+        long target = sequence.get();
+        while (durableSequence < target && writer.isAlive())
+            wait(10);
+        if (failure != null)
+            throw new IOException("Journal failed, events after the failure are not on disk", failure);
+        if (durableSequence < target)
+            throw new IOException("Journal writer stopped before sequence " + target + " was on disk");
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (pendingLock) {
+            closed = true;
+            pendingLock.notify();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void encode(JournalEvent event, ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.position(start + HEADER_BYTES);
+        buffer.put(event.type);
+        buffer.putLong(event.sequence);
+        putString(buffer, event.first);
+        putString(buffer, event.second);
+        putString(buffer, event.third);
+        buffer.putLong(event.firstNumber);
+        buffer.putLong(event.secondNumber);
+        buffer.putDouble(event.amount);
+        int pairs = event.names == null ? 0 : event.names.length;
+        buffer.putShort((short) pairs);
+        for (int i = 0; i < pairs; i++) {
+            putString(buffer, event.names[i]);
+            buffer.putInt(event.values == null ? 0 : event.values[i]);
+        }
+        int end = buffer.position();
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER_BYTES).limit(end);
+        crc.reset();
+        crc.update(body);
+        buffer.putInt(start, end - start - HEADER_BYTES);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    // Size of the string as written by putString(), without encoding it. MAX_RECORD_BYTES when it can't be written.
+    private static int stringBytes(String value) {
+        if (value == null)
+            return 2;
+        int bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80)
+                bytes++;
+            else if (c < 0x800)
+                bytes += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else
+                bytes += 3; // A lone surrogate is encoded as '?', 3 is an upper bound
+        }
+        return bytes > MAX_STRING_BYTES ? MAX_RECORD_BYTES : 2 + bytes;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /************************************ Recovery ***************************************************************/
+
+    // Replays the journal into parkingLot, returns the number of records applied
+    public long recover(ParkingLot parkingLot) throws IOException {
+        return recover(parkingLot, 0);
+    }
+
+    // Replays only the records after afterSequence, i.e. the tail after a ParkingSnapshot
+    public long recover(ParkingLot parkingLot, long afterSequence) throws IOException {
+        long[] applied = new long[1];
+        scan(event -> {
+            if (event.sequence <= afterSequence)
+                return;
+            apply(parkingLot, event);
+            applied[0]++;
+        });
+        return applied[0];
+    }
+
+    public static Path fileFor(Path directory, String parkingLotId) {
+        return directory.resolve(parkingLotId + ".journal");
+    }
+
+    /*
+    Walks over the valid records of the file (memory mapped), handing each one to consumer (if not null).
+    Returns the number of valid bytes, everything after that is a torn write of a crash.
+    */
+    private long scan(Consumer<JournalEvent> consumer) throws IOException {
+        long size = channel.size();
+        if (size == 0)
+            return 0;
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        CRC32 checksum = new CRC32();
+        long lastSequence = 0;
+        while (mapped.remaining() >= HEADER_BYTES) {
+            int start = mapped.position();
+            int length = mapped.getInt();
+            int expectedCrc = mapped.getInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES || length > mapped.remaining())
+                return start;
+            ByteBuffer body = mapped.slice();
+            body.limit(length);
+            checksum.reset();
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != expectedCrc)
+                return start;
+
+            JournalEvent event = new JournalEvent(body.get(), null, null, null, 0, 0, 0);
+            event.sequence = body.getLong();
+            event.first = getString(body);
+            event.second = getString(body);
+            event.third = getString(body);
+            event.firstNumber = body.getLong();
+            event.secondNumber = body.getLong();
+            event.amount = body.getDouble();
+            if (body.hasRemaining()) { // Records written before floors & spots carried strategy / distances have none
+                int pairs = body.getShort();
+                event.names = new String[pairs];
+                event.values = new int[pairs];
+                for (int i = 0; i < pairs; i++) {
+                    event.names[i] = getString(body);
+                    event.values[i] = body.getInt();
+                }
+            }
+            lastSequence = Math.max(lastSequence, event.sequence);
+            if (consumer != null)
+                consumer.accept(event);
+            mapped.position(start + HEADER_BYTES + length);
+        }
+        sequence.set(Math.max(sequence.get(), lastSequence));
+        return mapped.position();
+    }
+
+    private static void apply(ParkingLot parkingLot, JournalEvent event) {
+        switch (event.type) {
+            case FLOOR_ADDED:
+                if (parkingLot.getParkingFloor(event.first) == null)
+                    parkingLot.addParkingFloor(new ParkingFloor(event.first, strategyOf(event)));
+                break;
+            case SPOT_ADDED:
+                ParkingFloor parkingFloor = parkingLot.getParkingFloor(event.first);
+                if (parkingFloor == null)
+                    break;
+                ParkingSpot parkingSpot = ParkingSpot.of(event.second, ParkingSpotType.values()[(int) event.firstNumber]);
+                // Distances before the spot is added, the nearest entrance heaps are ordered by them
+                for (int i = 0; event.names != null && i < event.names.length; i++)
+                    parkingSpot.setDistanceFromEntrance(event.names[i], event.values[i]);
+                parkingLot.addParkingSpot(parkingFloor, parkingSpot);
+                break;
+            case FLOOR_DRAINED:
+                // Vehicles parked on it were replayed before, they leave (& their spots retire) with their vacates
+                parkingLot.drainParkingFloor(event.first);
+                break;
+            case FLOOR_REMOVED:
+                // Every vehicle of the floor left before it was removed, so its vacates were replayed already
+                parkingLot.drainParkingFloor(event.first);
+                parkingLot.removeParkingFloor(event.first);
+                break;
+            case ENTRANCE_PANEL_ADDED:
+                parkingLot.addEntrancePanel(new EntrancePanel(event.first));
+                break;
+            case EXIT_PANEL_ADDED:
+                parkingLot.addExitPanel(new ExitPanel(event.first));
+                break;
+            case TICKET_ISSUED:
+                // Idempotent: the spot (and ticket) may already be there when replaying on top of a snapshot
+                parkingLot.occupyParkingSpot(event.first, event.second);
+                if (parkingLot.getActiveTicket(event.firstNumber) != null)
+                    break;
+                ParkingTicket parkingTicket = new ParkingTicket();
+                parkingTicket.setTicketId(event.firstNumber);
+                parkingTicket.setAllocatedSpotId(event.first);
+                parkingTicket.setLicensePlateNumber(event.second);
+                parkingTicket.setIssuedAtEpochSecond(event.secondNumber);
+                parkingTicket.setTicketStatus(TicketStatus.ACTIVE);
+                parkingLot.addActiveTicket(parkingTicket);
+                break;
+            case TICKET_VACATED:
+                parkingLot.vacateParkingSpot(event.first);
+                parkingLot.removeActiveTicket(event.firstNumber);
+                break;
+            default:
+                // PAYMENT_COMPLETED: payments are not part of the live lot state, nothing to rebuild
+                break;
+        }
+    }
+
+    private static SpotAllocationStrategy strategyOf(JournalEvent event) {
+        if (event.firstNumber == ParkingSnapshot.NEAREST_ENTRANCE_STRATEGY && event.names != null)
+            return new NearestEntranceAllocationStrategy(Arrays.asList(event.names));
+        return new DequeAllocationStrategy();
+    }
+
+    // One journal record. Generic fields, their meaning depends on type (see the on*() methods).
+    private static class JournalEvent {
+        private final byte type;
+        private String first;
+        private String second;
+        private String third;
+        private long firstNumber;
+        private long secondNumber;
+        private double amount;
+        private String[] names; // (name, value) pairs: entrance ids of a floor, entrance distances of a spot
+        private int[] values;
+        private long sequence;
+
+        private JournalEvent(byte type, String first, String second, String third, long firstNumber,
+                             long secondNumber, double amount) {
+            this.type = type;
+            this.first = first;
+            this.second = second;
+            this.third = third;
+            this.firstNumber = firstNumber;
+            this.secondNumber = secondNumber;
+            this.amount = amount;
+        }
+
+        // Body bytes encode() writes, checked at append() so that the writer never meets a record that can't fit
+        private long encodedBytes() {
+            long bytes = 1 + 8 + stringBytes(first) + stringBytes(second) + stringBytes(third) + 8 + 8 + 8 + 2;
+            for (int i = 0; names != null && i < names.length; i++)
+                bytes += stringBytes(names[i]) + 4;
+            return bytes;
+        }
+    }
+}
+
+/*
+Compact binary snapshot of the whole topology of a set of ParkingLots: lots, floors (with their strategy), spots (with
+entrance distances), panels and active tickets. Occupancy is not stored separately, it's the spots of the active tickets.
+
+Snapshots are taken while the gates keep running, nothing is paused or copied up front (fuzzy snapshot):
+1. Read the sequence of the lot journal first (the epoch of the snapshot).
+2. Walk the live structures, they are all concurrent so the walk is safe, just not a single point in time.
+3. On restore, replay only the journal records after that sequence. Replay is idempotent, so an event that the walk
+   already saw is simply applied again and ends in the same state.
+Every change that finished before step 1 is seen by the walk, and every change after step 1 has a later sequence.
+
+File: int MAGIC, int VERSION, long createdAt, int lot count, then per lot (see writeLot()).
+A draining floor is written with its flag (VERSION 2) & all of its spots. On restore it is drained again once the
+tickets are back, so its free spots are retired & the spots of the parked vehicles retire as they leave. VERSION 1
+files (no flag) are still read.
+*/
+class ParkingSnapshot {
+    private static final int MAGIC = 0x504B534E; // "PKSN"
+    private static final int VERSION = 2;
+    static final byte DEQUE_STRATEGY = 0; // Also used by the journal floor records
+    static final byte NEAREST_ENTRANCE_STRATEGY = 1;
+
+    // Writes to a temp file first and moves it in place, so a crash never leaves a half written snapshot behind
+    public static void write(Path file, Collection<ParkingLot> parkingLots) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(parkingLots.size());
+            for (ParkingLot parkingLot : parkingLots)
+                writeLot(out, parkingLot);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeLot(DataOutputStream out, ParkingLot parkingLot) throws IOException {
+        ParkingJournal journal = parkingLot.getJournal();
+        out.writeUTF(parkingLot.getParkingLotId());
+        out.writeLong(journal == null ? 0 : journal.getLastSequence()); // Must be read before the walk
+
+        List<ParkingFloor> parkingFloors = new ArrayList<>(parkingLot.getParkingFloors());
+        out.writeInt(parkingFloors.size());
+        for (ParkingFloor parkingFloor : parkingFloors) {
+            out.writeUTF(parkingFloor.getFloorId());
+            SpotAllocationStrategy strategy = parkingFloor.getAllocationStrategy();
+            if (strategy instanceof NearestEntranceAllocationStrategy) {
+                out.writeByte(NEAREST_ENTRANCE_STRATEGY);
+                List<String> entranceIds = ((NearestEntranceAllocationStrategy) strategy).getEntranceIds();
+                out.writeInt(entranceIds.size());
+                for (String entranceId : entranceIds)
+                    out.writeUTF(entranceId);
+            } else {
+                out.writeByte(DEQUE_STRATEGY);
+            }
+            out.writeBoolean(parkingFloor.isDraining());
+
+            List<ParkingSpot> parkingSpots = new ArrayList<>();
+            parkingFloor.forEachSpot(parkingSpots::add);
+            out.writeInt(parkingSpots.size());
+            for (ParkingSpot parkingSpot : parkingSpots) {
+                out.writeUTF(parkingSpot.getParkingSpotId());
+                out.writeByte(parkingSpot.getParkingSpotType().ordinal());
+                Map<String, Integer> distances = new HashMap<>(parkingSpot.getEntranceDistances());
+                out.writeInt(distances.size());
+                for (Map.Entry<String, Integer> distance : distances.entrySet()) {
+                    out.writeUTF(distance.getKey());
+                    out.writeInt(distance.getValue());
+                }
+            }
+        }
+
+        List<EntrancePanel> entrancePanels = new ArrayList<>(parkingLot.getEntrancePanels());
+        out.writeInt(entrancePanels.size());
+        for (EntrancePanel entrancePanel : entrancePanels)
+            out.writeUTF(entrancePanel.getId());
+        List<ExitPanel> exitPanels = new ArrayList<>(parkingLot.getExitPanels());
+        out.writeInt(exitPanels.size());
+        for (ExitPanel exitPanel : exitPanels)
+            out.writeUTF(exitPanel.getId());
+
+        List<ParkingTicket> parkingTickets = new ArrayList<>(parkingLot.getActiveTickets().values());
+        out.writeInt(parkingTickets.size());
+        for (ParkingTicket parkingTicket : parkingTickets) {
+            out.writeLong(parkingTicket.getTicketId());
+            writeNullableUTF(out, parkingTicket.getLicensePlateNumber());
+            out.writeUTF(parkingTicket.getAllocatedSpotId());
+            out.writeLong(parkingTicket.getIssuedAtEpochSecond());
+        }
+    }
+
+    // Tickets may have no plate (the lot accepts them), a presence flag before the string like the journal's -1 length
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // Rebuilds the lots of the snapshot. Value is the journal sequence to replay after, for that lot.
+    public static Map<ParkingLot, Long> read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version < 1 || version > VERSION)
+                throw new IOException("Not a parking snapshot: " + file);
+            in.readLong(); // createdAt
+            int lotCount = in.readInt();
+            Map<ParkingLot, Long> parkingLots = new LinkedHashMap<>();
+            for (int i = 0; i < lotCount; i++) {
+                ParkingLot parkingLot = new ParkingLot(in.readUTF());
+                parkingLots.put(parkingLot, in.readLong());
+                readLot(in, parkingLot, version);
+            }
+            return parkingLots;
+        }
+    }
+
+    private static void readLot(DataInputStream in, ParkingLot parkingLot, int version) throws IOException {
+        int floorCount = in.readInt();
+        List<String> drainingFloorIds = new ArrayList<>();
+        for (int i = 0; i < floorCount; i++) {
+            String floorId = in.readUTF();
+            SpotAllocationStrategy strategy = new DequeAllocationStrategy();
+            if (in.readByte() == NEAREST_ENTRANCE_STRATEGY) {
+                int entranceCount = in.readInt();
+                List<String> entranceIds = new ArrayList<>(entranceCount);
+                for (int e = 0; e < entranceCount; e++)
+                    entranceIds.add(in.readUTF());
+                strategy = new NearestEntranceAllocationStrategy(entranceIds);
+            }
+            if (version >= 2 && in.readBoolean())
+                drainingFloorIds.add(floorId);
+            ParkingFloor parkingFloor = new ParkingFloor(floorId, strategy);
+            parkingLot.addParkingFloor(parkingFloor);
+
+            int spotCount = in.readInt();
+            for (int s = 0; s < spotCount; s++) {
+                ParkingSpot parkingSpot = ParkingSpot.of(in.readUTF(), ParkingSpotType.values()[in.readByte()]);
+                int distanceCount = in.readInt();
+                for (int d = 0; d < distanceCount; d++)
+                    parkingSpot.setDistanceFromEntrance(in.readUTF(), in.readInt());
+                parkingLot.addParkingSpot(parkingFloor, parkingSpot);
+            }
+        }
+
+        int entrancePanelCount = in.readInt();
+        for (int i = 0; i < entrancePanelCount; i++)
+            parkingLot.addEntrancePanel(new EntrancePanel(in.readUTF()));
+        int exitPanelCount = in.readInt();
+        for (int i = 0; i < exitPanelCount; i++)
+            parkingLot.addExitPanel(new ExitPanel(in.readUTF()));
+
+        int ticketCount = in.readInt();
+        for (int i = 0; i < ticketCount; i++) {
+            ParkingTicket parkingTicket = new ParkingTicket();
+            parkingTicket.setTicketId(in.readLong());
+            parkingTicket.setLicensePlateNumber(readNullableUTF(in));
+            parkingTicket.setAllocatedSpotId(in.readUTF());
+            parkingTicket.setIssuedAtEpochSecond(in.readLong());
+            parkingTicket.setTicketStatus(TicketStatus.ACTIVE);
+            parkingLot.occupyParkingSpot(parkingTicket.getAllocatedSpotId(), parkingTicket.getLicensePlateNumber());
+            parkingLot.addActiveTicket(parkingTicket);
+        }
+        // After the tickets: draining retires the free spots, the occupied ones must be taken by then
+        for (String floorId : drainingFloorIds)
+            parkingLot.drainParkingFloor(floorId);
+    }
+}
+
+/************************************************** Metrics **********************************************************/
+
+/*
+HDR-style latency histogram (log-linear buckets, like HdrHistogram), in nanoseconds.
+Values below 64 have a bucket each. Above that, every power of 2 is split in 32 linear sub-buckets, so a bucket is
+never wider than ~3% of its value, whatever the range (ns up to days). That's 1888 buckets, 15 KB per histogram.
+record() finds the bucket with a few shifts & increments an AtomicLongArray slot: no lock, no allocation.
+Percentiles are read by walking the buckets, they are reported as the highest value of the bucket they fall in.
+*/
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) ;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_LIMIT)
+            return bucket;
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long samples = count.sum();
+        return samples == 0 ? 0 : sum.sum() / samples;
+    }
+
+    // percentile in [0, 100]
+    public long getValueAtPercentile(double percentile) {
+        long samples = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+            samples += counts.get(bucket);
+        if (samples == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * samples));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= target)
+                return Math.min(highestValueOf(bucket), max.get());
+        }
+        return max.get();
+    }
+
+    // Not atomic with concurrent record(), a few samples can land on either side of the reset
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+            counts.set(bucket, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+}
+
+/*
+Metrics of one ParkingLot. The gate code only records (histograms & counters, allocation-free). Everything that can
+be read off the live structures (occupancy, misses & lock waits of every floor) is read at collect() time instead of
+being tracked twice.
+- ticketIssueLatency : EntrancePanel.getParkingTicket(), from the scan to the ticket (batch calls are not timed)
+- exitLatency        : ExitPanel vacate of one ticket, pricing included
+- gatewayLatency     : every PaymentGateway.authorize() attempt
+- rejections         : vehicles an EntrancePanel turned away, per VehicleType
+- paymentRetries / failedPayments : from PaymentPipeline
+- timeouts.failed_tasks : reservation / admission timeouts that threw (see HashedTimingWheel)
+Pull: collect() gives a flat name -> value map, dump() the same as text. scheduleDump() writes dump() periodically.
+*/
+@Getter
+class ParkingMetrics {
+    private final ParkingLot parkingLot;
+    private final LatencyHistogram ticketIssueLatency = new LatencyHistogram();
+    private final LatencyHistogram exitLatency = new LatencyHistogram();
+    private final LatencyHistogram gatewayLatency = new LatencyHistogram();
+    private final AtomicLongArray rejections = new AtomicLongArray(VehicleType.values().length);
+    private final LongAdder paymentRetries = new LongAdder();
+    private final LongAdder failedPayments = new LongAdder();
+
+    public ParkingMetrics(ParkingLot parkingLot) {
+        this.parkingLot = parkingLot;
+    }
+
+    public void recordRejection(VehicleType vehicleType) {
+        rejections.incrementAndGet(vehicleType.ordinal());
+    }
+
+    public Map<String, Long> collect() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        addHistogram(values, "entrance.issue_ns", ticketIssueLatency);
+        addHistogram(values, "exit.vacate_ns", exitLatency);
+        addHistogram(values, "payment.gateway_ns", gatewayLatency);
+        values.put("payment.retries", paymentRetries.sum());
+        values.put("payment.failed", failedPayments.sum());
+        for (VehicleType vehicleType : VehicleType.values())
+            values.put("entrance.rejected." + vehicleType, rejections.get(vehicleType.ordinal()));
+        values.put("lot.active_tickets", (long) parkingLot.getActiveTickets().size());
+        AdmissionQueue admissionQueue = parkingLot.getAdmissionQueue();
+        values.put("admission.waiting", (long) admissionQueue.getWaiting());
+        values.put("admission.admitted", admissionQueue.getAdmitted().sum());
+        values.put("admission.rejected", admissionQueue.getRejected().sum());
+        values.put("admission.abandoned", admissionQueue.getAbandoned().sum());
+        ParkingJournal journal = parkingLot.getJournal();
+        if (journal != null) {
+            values.put("journal.failed", journal.isFailed() ? 1L : 0L);
+            values.put("journal.dropped", journal.getDroppedEvents().sum());
+            values.put("journal.oversized", journal.getOversizedEvents().sum());
+        }
+        values.put("timeouts.failed_tasks", ParkingLot.getTimeoutWheel().getFailedTasks().sum()); // Shared by every lot
+        values.put("snapshots.failed", ParkingLotRepository.getFailedSnapshots().sum()); // Same
+        SpotLeaseManager leaseManager = parkingLot.getSpotLeaseManager();
+        if (leaseManager != null) {
+            values.put("lease.leased", (long) leaseManager.getLeasedCount());
+            values.put("lease.hits", leaseManager.getLeaseHits().sum());
+            values.put("lease.batch_claims", leaseManager.getBatchClaims().sum());
+            values.put("lease.returned", leaseManager.getReturnedSpots().sum());
+        }
+
+        for (ParkingFloor parkingFloor : parkingLot.getParkingFloors()) {
+            String prefix = "floor." + parkingFloor.getFloorId() + ".";
+            for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+                values.put(prefix + "free." + parkingSpotType, (long) parkingFloor.getFreeSpotCount(parkingSpotType));
+                values.put(prefix + "used." + parkingSpotType, (long) parkingFloor.getUsedSpotCount(parkingSpotType));
+            }
+            for (VehicleType vehicleType : VehicleType.values())
+                values.put(prefix + "misses." + vehicleType, parkingFloor.getSpotMisses().get(vehicleType.ordinal()));
+            values.put(prefix + "lock_waits", parkingFloor.getAllocationStrategy().getLockWaits());
+        }
+        return values;
+    }
+
+    private static void addHistogram(Map<String, Long> values, String name, LatencyHistogram histogram) {
+        values.put(name + ".count", histogram.getCount());
+        values.put(name + ".mean", histogram.getMean());
+        values.put(name + ".p50", histogram.getValueAtPercentile(50));
+        values.put(name + ".p99", histogram.getValueAtPercentile(99));
+        values.put(name + ".p999", histogram.getValueAtPercentile(99.9));
+        values.put(name + ".max", histogram.getMax());
+    }
+
+    public String dump() {
+        StringBuilder text = new StringBuilder("# parking lot " + parkingLot.getParkingLotId() + "\n");
+        collect().forEach((name, value) -> text.append(name).append(' ').append(value).append('\n'));
+        return text.toString();
+    }
+
+    public ScheduledExecutorService scheduleDump(long period, TimeUnit unit, Consumer<String> sink) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "parking-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> sink.accept(dump()), period, period, unit);
+        return scheduler;
+    }
+}
+
+/************************************************** Analytics ********************************************************/
+
+/*
+Event counter over a sliding window, as a ring of slots (e.g. 60 slots of 1 second = the last minute).
+Every slot is one long: (slot number << 32) | count. The slot number is time / slotMillis, so a slot that still has the
+number of an older lap of the ring is stale & reads as 0. add() is one CAS: either count + 1 on the current slot, or
+a fresh (slot number, 1) over a stale one. No reset thread, no lock, and a reset can't lose a concurrent add.
+Reads sum the ring, a fixed number of slots whatever the traffic.
+*/
+class SlidingWindowCounter {
+    private final long slotMillis;
+    private final AtomicLongArray slots;
+
+    public SlidingWindowCounter(long slotMillis, int slotCount) {
+        this.slotMillis = slotMillis;
+        this.slots = new AtomicLongArray(slotCount);
+    }
+
+    public void add(long timeMillis) {
+        long slotNumber = timeMillis / slotMillis;
+        int index = (int) (slotNumber % slots.length());
+        while (true) {
+            long current = slots.get(index);
+            long updated = (current >>> 32) == slotNumber ? current + 1 : (slotNumber << 32) | 1;
+            if (slots.compareAndSet(index, current, updated))
+                return;
+        }
+    }
+
+    // Events in the slot that holds timeMillis
+    public long get(long timeMillis) {
+        long slotNumber = timeMillis / slotMillis;
+        long value = slots.get((int) (slotNumber % slots.length()));
+        return (value >>> 32) == slotNumber ? value & 0xFFFFFFFFL : 0;
+    }
+
+    // Events in the whole window ending at nowMillis (slotCount slots)
+    public long sum(long nowMillis) {
+        long total = 0;
+        for (int slot = 0; slot < slots.length(); slot++)
+            total += get(nowMillis - slot * slotMillis);
+        return total;
+    }
+
+    // Count of every slot of the window, oldest first
+    public long[] series(long nowMillis) {
+        long[] series = new long[slots.length()];
+        for (int slot = 0; slot < series.length; slot++)
+            series[series.length - 1 - slot] = get(nowMillis - slot * slotMillis);
+        return series;
+    }
+}
+
+/*
+Live flow & occupancy analytics of a lot, fed by ticket events: parkingLot.addListener(new ParkingAnalytics(parkingLot))
+Everything is updated incrementally when a ticket is issued or vacated, so queries never rescan tickets:
+- arrivals / departures : last minute (60 x 1 s slots) and per minute for the last hour (60 x 1 min slots)
+- dwell time            : LatencyHistogram per ParkingSpotType, in seconds. Mean & quantiles (p50, p95...) of all the
+                          stays seen, without keeping the stays
+- peak occupancy        : highest used spot count seen per floor & for the lot
+Event times are the ticket times, so journal replay into a lot that already has this listener rebuilds the same view.
+*/
+class ParkingAnalytics implements ParkingEventListener {
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+
+    private final SlidingWindowCounter arrivalsLastMinute = new SlidingWindowCounter(SECOND, 60);
+    private final SlidingWindowCounter departuresLastMinute = new SlidingWindowCounter(SECOND, 60);
+    private final SlidingWindowCounter arrivalsPerMinute = new SlidingWindowCounter(MINUTE, 60);
+    private final SlidingWindowCounter departuresPerMinute = new SlidingWindowCounter(MINUTE, 60);
+    private final LatencyHistogram[] dwellSeconds = new LatencyHistogram[ParkingSpotType.values().length];
+    private final Map<String, AtomicInteger> floorPeaks = new ConcurrentHashMap<>();
+    private final AtomicInteger lotPeak = new AtomicInteger();
+    private final ParkingLot parkingLot;
+
+    public ParkingAnalytics(ParkingLot parkingLot) {
+        this.parkingLot = parkingLot;
+        for (int i = 0; i < dwellSeconds.length; i++)
+            dwellSeconds[i] = new LatencyHistogram();
+    }
+
+    @Override
+    public void onTicketIssued(ParkingTicket parkingTicket, SpotLocation spotLocation) {
+        long issuedAtMillis = parkingTicket.getIssuedAtEpochSecond() * SECOND;
+        arrivalsLastMinute.add(issuedAtMillis);
+        arrivalsPerMinute.add(issuedAtMillis);
+        raise(lotPeak, parkingLot.getOccupancy().getTotalOccupied());
+        if (spotLocation == null)
+            return;
+        ParkingFloor parkingFloor = spotLocation.getParkingFloor();
+        raise(floorPeaks.computeIfAbsent(parkingFloor.getFloorId(), floorId -> new AtomicInteger()),
+                parkingFloor.getOccupancy().getTotalOccupied());
+    }
+
+    @Override
+    public void onTicketVacated(ParkingTicket parkingTicket, SpotLocation spotLocation) {
+        long vacatedAtMillis = parkingTicket.getVacatedAtEpochSecond() * SECOND;
+        departuresLastMinute.add(vacatedAtMillis);
+        departuresPerMinute.add(vacatedAtMillis);
+        if (spotLocation != null)
+            dwellSeconds[spotLocation.getParkingSpot().getParkingSpotType().ordinal()]
+                    .record(parkingTicket.getVacatedAtEpochSecond() - parkingTicket.getIssuedAtEpochSecond());
+    }
+
+    private static void raise(AtomicInteger peak, int value) {
+        int current;
+        while (value > (current = peak.get()) && !peak.compareAndSet(current, value)) ;
+    }
+
+    public long getArrivalsLastMinute() {
+        return arrivalsLastMinute.sum(parkingLot.getClockSource().currentTimeMillis());
+    }
+
+    public long getDeparturesLastMinute() {
+        return departuresLastMinute.sum(parkingLot.getClockSource().currentTimeMillis());
+    }
+
+    // Last 60 minutes, oldest first, the last value is the current (partial) minute
+    public long[] getArrivalsPerMinute() {
+        return arrivalsPerMinute.series(parkingLot.getClockSource().currentTimeMillis());
+    }
+
+    public long[] getDeparturesPerMinute() {
+        return departuresPerMinute.series(parkingLot.getClockSource().currentTimeMillis());
+    }
+
+    public long getAverageDwellSeconds(ParkingSpotType parkingSpotType) {
+        return dwellSeconds[parkingSpotType.ordinal()].getMean();
+    }
+
+    public long getDwellSecondsAtPercentile(ParkingSpotType parkingSpotType, double percentile) {
+        return dwellSeconds[parkingSpotType.ordinal()].getValueAtPercentile(percentile);
+    }
+
+    public long getDwellCount(ParkingSpotType parkingSpotType) {
+        return dwellSeconds[parkingSpotType.ordinal()].getCount();
+    }
+
+    public int getPeakOccupancy(String floorId) {
+        AtomicInteger peak = floorPeaks.get(floorId);
+        return peak == null ? 0 : peak.get();
+    }
+
+    public int getLotPeakOccupancy() {
+        return lotPeak.get();
+    }
+}
+
+/************************************************** Exceptions *********************************************************/
+
+class InvalidParkingLotException extends Exception {
+    public InvalidParkingLotException(String message) {
+        super(message);
+    }
+}
+
+class InvlaidParkingFloorException extends Exception {
+    public InvlaidParkingFloorException(String message) {
+        super(message);
+    }
+}
+
+class DuplicateAccountException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public DuplicateAccountException(String message) {
+        super(message);
+    }
+}
+
+class PaymentGatewayException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public PaymentGatewayException(String message) {
+        super(message);
+    }
+}
+
+/************************************************** Repository *********************************************************/
+
+/*
+Bulk provisioning of a lot layout from a file, instead of thousands of addParkingSpot() calls.
+Formats:
+- CSV, one spot per line: floorId,spotId,spotType[,entranceId=distance;entranceId=distance...]
+  Blank lines, lines starting with # and a header line starting with floorId are skipped.
+- Binary (see writeBinary()): magic, then one block per floor: floorId, spot count, then per spot its id, type
+  ordinal & (entranceId, distance) pairs. Floor ids are written once per floor instead of once per spot.
+Steps:
+1. The file is streamed row by row. Spot ids are de-duplicated with a HashSet, and against the spots already in the lot
+   with its spot index. Rows are grouped per floor in a map keyed by lower case floor id. O(n) for the whole file.
+2. New floors are built in parallel, one task per floor (a floor is not shared until it is published).
+3. New floors are published with a single ParkingLot.addParkingFloors(): gates see all of the new floors or none.
+   Rows for floors that are already live are added after that, through ParkingLot.addParkingSpot().
+A malformed row fails the import before anything is published.
+*/
+class ParkingLotLayoutImporter {
+    private static final int BINARY_MAGIC = 0x504C4C59; // "PLLY"
+
+    private final ParkingLot parkingLot;
+    private final Function<String, SpotAllocationStrategy> strategyFactory; // floorId -> strategy of a new floor
+
+    public ParkingLotLayoutImporter(ParkingLot parkingLot) {
+        this(parkingLot, floorId -> new DequeAllocationStrategy());
+    }
+
+    public ParkingLotLayoutImporter(ParkingLot parkingLot, Function<String, SpotAllocationStrategy> strategyFactory) {
+        this.parkingLot = parkingLot;
+        this.strategyFactory = strategyFactory;
+    }
+
+    // .csv files are read as CSV, anything else as the binary format
+    public LayoutImportResult importFile(Path file) throws IOException {
+        if (file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                return importCsv(reader);
+            }
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            return importBinary(in);
+        }
+    }
+
+    public LayoutImportResult importCsv(BufferedReader reader) throws IOException {
+        Layout layout = new Layout();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.regionMatches(true, 0, "floorId", 0, 7))
+                continue;
+            String[] columns = line.split(",", -1);
+            if (columns.length < 3)
+                throw new IOException("Line " + lineNumber + ": expected floorId,spotId,spotType but got " + line);
+            ParkingSpot parkingSpot;
+            try {
+                parkingSpot = ParkingSpot.of(columns[1].trim(),
+                        ParkingSpotType.valueOf(columns[2].trim().toUpperCase(Locale.ROOT)));
+                if (columns.length > 3 && !columns[3].trim().isEmpty()) {
+                    for (String distance : columns[3].split(";")) {
+                        int separator = distance.indexOf('=');
+                        parkingSpot.setDistanceFromEntrance(distance.substring(0, separator).trim(),
+                                Integer.parseInt(distance.substring(separator + 1).trim()));
+                    }
+                }
+            } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+            }
+            layout.add(columns[0].trim(), parkingSpot);
+        }
+        return publish(layout);
+    }
+
+    public LayoutImportResult importBinary(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt() != BINARY_MAGIC)
+            throw new IOException("Not a parking lot layout file");
+        ParkingSpotType[] spotTypes = ParkingSpotType.values();
+        Layout layout = new Layout();
+        while (in.readBoolean()) {
+            String floorId = in.readUTF();
+            int spots = in.readInt();
+            for (int i = 0; i < spots; i++) {
+                ParkingSpot parkingSpot = ParkingSpot.of(in.readUTF(), spotTypes[in.readByte()]);
+                int distances = in.readUnsignedByte();
+                for (int d = 0; d < distances; d++)
+                    parkingSpot.setDistanceFromEntrance(in.readUTF(), in.readInt());
+                layout.add(floorId, parkingSpot);
+            }
+        }
+        return publish(layout);
+    }
+
+    // Layout of a lot (floors, spots & distances, not occupancy) in the binary format
+    public static void writeBinary(ParkingLot parkingLot, OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+        out.writeInt(BINARY_MAGIC);
+        for (ParkingFloor parkingFloor : parkingLot.getParkingFloors()) {
+            List<ParkingSpot> spots = new ArrayList<>();
+            parkingFloor.forEachSpot(spots::add);
+            out.writeBoolean(true);
+            out.writeUTF(parkingFloor.getFloorId());
+            out.writeInt(spots.size());
+            for (ParkingSpot parkingSpot : spots) {
+                out.writeUTF(parkingSpot.getParkingSpotId());
+                out.writeByte(parkingSpot.getParkingSpotType().ordinal());
+                out.writeByte(parkingSpot.getEntranceDistances().size());
+                for (Map.Entry<String, Integer> distance : parkingSpot.getEntranceDistances().entrySet()) {
+                    out.writeUTF(distance.getKey());
+                    out.writeInt(distance.getValue());
+                }
+            }
+        }
+        out.writeBoolean(false);
+        out.flush();
+    }
+
+    private LayoutImportResult publish(Layout layout) {
+        List<FloorRows> newFloors = new ArrayList<>();
+        List<FloorRows> liveFloors = new ArrayList<>();
+        for (FloorRows floorRows : layout.floors.values())
+            (parkingLot.getParkingFloor(floorRows.floorId) == null ? newFloors : liveFloors).add(floorRows);
+
+        newFloors.parallelStream().forEach(floorRows -> {
+            floorRows.built = new ParkingFloor(floorRows.floorId, strategyFactory.apply(floorRows.floorId));
+            floorRows.spots.forEach(floorRows.built::addSpot);
+        });
+        List<ParkingFloor> built = new ArrayList<>(newFloors.size());
+        newFloors.forEach(floorRows -> built.add(floorRows.built));
+        Set<ParkingFloor> added = Collections.newSetFromMap(new IdentityHashMap<>());
+        added.addAll(parkingLot.addParkingFloors(built));
+
+        int spotsAdded = 0;
+        for (FloorRows floorRows : newFloors) {
+            if (added.contains(floorRows.built))
+                spotsAdded += floorRows.built.getSpotCount(); // Less than the rows if a spot id was added meanwhile
+            else
+                liveFloors.add(floorRows); // Same floor id was added to the lot meanwhile, its rows go to that floor
+        }
+        for (FloorRows floorRows : liveFloors) {
+            ParkingFloor parkingFloor = parkingLot.getParkingFloor(floorRows.floorId);
+            for (ParkingSpot parkingSpot : floorRows.spots)
+                if (parkingLot.addParkingSpot(parkingFloor, parkingSpot) == parkingSpot)
+                    spotsAdded++;
+        }
+        return new LayoutImportResult(added.size(), spotsAdded, layout.duplicateSpots);
+    }
+
+    // Rows of the file grouped per floor, duplicates already dropped
+    private class Layout {
+        private final Map<String, FloorRows> floors = new LinkedHashMap<>(); // Lower case floorId -> rows
+        private final Set<String> spotIds = new HashSet<>(); // Lower case, like the lot spot index
+        private int duplicateSpots;
+
+        void add(String floorId, ParkingSpot parkingSpot) {
+            if (!spotIds.add(ParkingLot.spotKey(parkingSpot.getParkingSpotId()))
+                    || parkingLot.getSpotLocation(parkingSpot.getParkingSpotId()) != null) {
+                duplicateSpots++;
+                return;
+            }
+            floors.computeIfAbsent(floorId.toLowerCase(Locale.ROOT), key -> new FloorRows(floorId))
+                    .spots.add(parkingSpot);
+        }
+    }
+
+    private static class FloorRows {
+        private final String floorId; // As first seen in the file
+        private final List<ParkingSpot> spots = new ArrayList<>();
+        private ParkingFloor built; // New floors only
+
+        FloorRows(String floorId) {
+            this.floorId = floorId;
+        }
+    }
+}
+
+@Getter
+@AllArgsConstructor
+class LayoutImportResult {
+    private final int floorsAdded;
+    private final int spotsAdded;
+    private final int duplicateSpots; // Rows skipped: spot id seen earlier in the file or already in the lot
+}
+
+/*
+Concurrent registry of all the ParkingLots of the JVM, sharded by lot id.
+Every shard is its own ConcurrentHashMap, so adding or removing a lot only touches the shard of that lot, and lookups
+never take a lock. Lots can be added & removed at runtime without any global lock.
+Per lot work (tickets, exits) doesn't go through the registry at all: panels & admins hold their own lot.
+*/
+class ParkingLotRegistry {
+    private final List<ConcurrentHashMap<String, ParkingLot>> shards;
+
+    public ParkingLotRegistry(int shardCount) {
+        int size = Integer.highestOneBit(Math.max(1, shardCount - 1) << 1); // Power of 2, so a shard is a mask away
+        List<ConcurrentHashMap<String, ParkingLot>> shards = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            shards.add(new ConcurrentHashMap<>());
+        this.shards = Collections.unmodifiableList(shards);
+    }
+
+    private ConcurrentHashMap<String, ParkingLot> shardFor(String parkingLotId) {
+        int hash = parkingLotId.hashCode();
+        return shards.get((hash ^ (hash >>> 16)) & (shards.size() - 1));
+    }
+
+    // Idempotent, returns the lot already registered with that id if there is one
+    public ParkingLot add(ParkingLot parkingLot) {
+        ParkingLot existing = shardFor(parkingLot.getParkingLotId()).putIfAbsent(parkingLot.getParkingLotId(), parkingLot);
+        return existing != null ? existing : parkingLot;
+    }
+
+    public ParkingLot get(String parkingLotId) {
+        return shardFor(parkingLotId).get(parkingLotId);
+    }
+
+    public ParkingLot remove(String parkingLotId) {
+        return shardFor(parkingLotId).remove(parkingLotId);
+    }
+
+    public List<ParkingLot> getAll() {
+        List<ParkingLot> parkingLots = new ArrayList<>();
+        for (ConcurrentHashMap<String, ParkingLot> shard : shards)
+            parkingLots.addAll(shard.values());
+        return parkingLots;
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<String, ParkingLot> shard : shards)
+            size += shard.size();
+        return size;
+    }
+}
+
+class ParkingLotRepository {
+    public static final ParkingLotRegistry parkingLotRegistry = new ParkingLotRegistry(64);
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final int SNAPSHOTS_TO_KEEP = 2;
+    // Background snapshots that failed, for metrics / health. The snapshot before stays, the next run tries again.
+    private static final LongAdder failedSnapshots = new LongAdder();
+    private static volatile Exception lastSnapshotFailure;
+
+    /*
+    Writes a snapshot of every lot into directory (see ParkingSnapshot) and deletes the older ones.
+    Journals of the lots are expected in the same directory, at ParkingJournal.fileFor(directory, lotId).
+    */
+    public Path writeSnapshot(Path directory) throws IOException {
+        Path file = directory.resolve(SNAPSHOT_PREFIX + System.currentTimeMillis() + SNAPSHOT_SUFFIX);
+        ParkingSnapshot.write(file, parkingLotRegistry.getAll());
+        List<Path> snapshots = listSnapshots(directory);
+        for (int i = 0; i < snapshots.size() - SNAPSHOTS_TO_KEEP; i++)
+            Files.deleteIfExists(snapshots.get(i));
+        return file;
+    }
+
+    // Takes snapshots in the background, gates are never paused for it
+    public ScheduledExecutorService scheduleSnapshots(Path directory, long period, TimeUnit unit) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "parking-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                writeSnapshot(directory);
+            } catch (IOException | RuntimeException e) { // Not rethrown: a scheduled task that throws never runs again
+                failedSnapshots.increment();
+                lastSnapshotFailure = e;
+            }
+        }, period, period, unit);
+        return scheduler;
+    }
+
+    public static LongAdder getFailedSnapshots() {
+        return failedSnapshots;
+    }
+
+    public static Exception getLastSnapshotFailure() {
+        return lastSnapshotFailure;
+    }
+
+    /*
+    Startup: loads the newest snapshot, then replays only the journal tail of every lot after the snapshot.
+    Lots created after the snapshot have only a journal, they are replayed from the start.
+    Every restored lot gets its journal attached again, and is added to this repository.
+    */
+    public List<ParkingLot> restore(Path directory) throws IOException {
+        List<Path> snapshots = listSnapshots(directory);
+        Map<ParkingLot, Long> restored = snapshots.isEmpty()
+                ? new LinkedHashMap<>() : ParkingSnapshot.read(snapshots.get(snapshots.size() - 1));
+
+        Set<String> restoredIds = new HashSet<>();
+        restored.keySet().forEach(parkingLot -> restoredIds.add(parkingLot.getParkingLotId()));
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(directory, "*.journal")) {
+            for (Path journal : journals) {
+                String parkingLotId = journal.getFileName().toString().replace(".journal", "");
+                if (!restoredIds.contains(parkingLotId))
+                    restored.put(new ParkingLot(parkingLotId), 0L);
+            }
+        }
+
+        List<ParkingLot> parkingLots = new ArrayList<>();
+        for (Map.Entry<ParkingLot, Long> entry : restored.entrySet()) {
+            ParkingLot parkingLot = entry.getKey();
+            ParkingJournal journal = new ParkingJournal(ParkingJournal.fileFor(directory, parkingLot.getParkingLotId()));
+            journal.recover(parkingLot, entry.getValue());
+            parkingLot.attachJournal(journal);
+            addParkingLot(parkingLot);
+            parkingLots.add(parkingLot);
+        }
+        return parkingLots;
+    }
+
+    // Oldest first. Names carry the creation millis, and they all have the same number of digits.
+    private static List<Path> listSnapshots(Path directory) throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+            files.forEach(snapshots::add);
+        }
+        snapshots.sort(Comparator.comparing(Path::toString));
+        return snapshots;
+    }
+
+
+    public ParkingLot addParkingLot(ParkingLot parkingLot) {
+        return parkingLotRegistry.add(parkingLot);
+    }
+
+    public ParkingLot getParkingLot(String parkingLotId) {
+        return parkingLotRegistry.get(parkingLotId);
+    }
+
+    public ParkingLot removeParkingLot(String parkingLotId) {
+        return parkingLotRegistry.remove(parkingLotId);
+    }
+
+    public List<ParkingLot> getParkingLots() {
+        return parkingLotRegistry.getAll();
+    }
+
+    // Bulk load of floors & spots from a CSV or binary layout file, see ParkingLotLayoutImporter
+    public LayoutImportResult importLayout(String parkingLotId, Path file)
+            throws InvalidParkingLotException, IOException {
+        ParkingLot parkingLot = parkingLotRegistry.get(parkingLotId);
+        if (parkingLot == null)
+            throw new InvalidParkingLotException("Invalid parking lot");
+        return new ParkingLotLayoutImporter(parkingLot).importFile(file);
+    }
+
+    public ParkingFloor addParkingFloor(String parkingLotId, ParkingFloor parkingFloor)
+            throws InvalidParkingLotException {
+        ParkingLot parkingLot = parkingLotRegistry.get(parkingLotId);
+        if (parkingLot == null)
+            throw new InvalidParkingLotException("Invalid parking lot");
+
+        //Idempotency, through the floor index of the parking lot
+        return parkingLot.addParkingFloor(parkingFloor);
+    }
+
+    public ParkingSpot addParkingSpot(String parkingLotId, String parkingFloorId, ParkingSpot parkingSpot)
+            throws InvalidParkingLotException, InvlaidParkingFloorException {
+        ParkingLot parkingLot = parkingLotRegistry.get(parkingLotId);
+        if (parkingLot == null)
+            throw new InvalidParkingLotException("Invalid parking lot");
+        ParkingFloor floor = parkingLot.getParkingFloor(parkingFloorId);
+        if (floor == null) {
+            throw new InvlaidParkingFloorException("Invalid parking floor");
+        }
+        // Idempotency, through the spot index of the parking lot
+        return parkingLot.addParkingSpot(floor, parkingSpot);
+    }
+
+    public EntrancePanel addEntryPanel(String parkingLotId, EntrancePanel entrancePanel)
+            throws InvalidParkingLotException {
+        ParkingLot parkingLot = parkingLotRegistry.get(parkingLotId);
+        if (parkingLot == null)
+            throw new InvalidParkingLotException("Invalid parking lot");
+        // Idempotency, the parking lot ignores an EntrancePanel that is already present
+        parkingLot.addEntrancePanel(entrancePanel);
+        return entrancePanel;
     }
 
-    private double calculateCost(ParkingTicket parkingTicket, ParkingSpotType parkingSpotType) {
-        Duration duration = Duration.between(parkingTicket.getIssuedAt(), LocalDateTime.now());
-        long hours = duration.toHours();
-        if (hours == 0)
-            hours = 1;
-        double amount = hours * new HourlyCost().getCost(parkingSpotType);
-        return amount;
+    public ExitPanel addExitPanel(String parkingLotId, ExitPanel exitPanel)
+            throws InvalidParkingLotException {
+        ParkingLot parkingLot = parkingLotRegistry.get(parkingLotId);
+        if (parkingLot == null)
+            throw new InvalidParkingLotException("Invalid parking lot");
+        // Idempotency, the parking lot ignores an ExitPanel that is already present
+        parkingLot.addExitPanel(exitPanel);
+        return exitPanel;
     }
 }
 
-@Getter
-class HourlyCost {
-    private Map<ParkingSpotType, Double> hourlyCosts = new HashMap<>();
+/*
+Admins of every lot, looked up on each back office call (operator login) from many threads at once.
+- adminsById       : id -> admin, with the index keys it was added under
+- adminsByEmail    : normalized email -> admin
+- adminsByUserName : normalized userName -> admin
+All lookups are one ConcurrentHashMap get(), no lock & no walk over every admin. Emails & user names are matched case
+insensitively ("Ops@Lot.com" & " ops@lot.com" are the same login), the key is normalized once when the admin is added.
+Adds & removes are rare, they are synchronized so that the three maps always change together: an email or user name
+is never left pointing at an admin that is gone, and two admins can't end up with the same one.
+The keys are taken when the admin is added, to change the email or user name remove the admin & add it again.
+*/
+class AdminRepository {
+    private static final Map<String, IndexedAdmin> adminsById = new ConcurrentHashMap<>();
+    private static final Map<String, Admin> adminsByEmail = new ConcurrentHashMap<>();
+    private static final Map<String, Admin> adminsByUserName = new ConcurrentHashMap<>();
 
-    public HourlyCost() {
-        hourlyCosts.put(ParkingSpotType.COMPACT, 20.0);
-        hourlyCosts.put(ParkingSpotType.LARGE, 30.0);
-        hourlyCosts.put(ParkingSpotType.ELECTRIC, 25.0);
-        hourlyCosts.put(ParkingSpotType.MOTORBIKE, 10.0);
-        hourlyCosts.put(ParkingSpotType.HANDICAPPED, 25.0);
+    /*
+    Idempotent, returns the admin already added with that id if there is one.
+    Throws if the email or user name belongs to another admin, and then nothing is added. An admin needs an id.
+    */
+    public Admin addAdmin(Admin admin) throws DuplicateAccountException {
+        if (admin.getId() == null)
+            throw new IllegalArgumentException("Admin has no id");
+        synchronized (AdminRepository.class) {
+            IndexedAdmin existing = adminsById.get(admin.getId());
+            if (existing != null)
+                return existing.getAdmin();
+            String emailKey = normalize(admin.getEmail());
+            String userNameKey = normalize(admin.getUserName());
+            if (emailKey != null && adminsByEmail.containsKey(emailKey))
+                throw new DuplicateAccountException("Email already in use: " + admin.getEmail());
+            if (userNameKey != null && adminsByUserName.containsKey(userNameKey))
+                throw new DuplicateAccountException("User name already in use: " + admin.getUserName());
+            if (emailKey != null)
+                adminsByEmail.put(emailKey, admin);
+            if (userNameKey != null)
+                adminsByUserName.put(userNameKey, admin);
+            adminsById.put(admin.getId(), new IndexedAdmin(admin, emailKey, userNameKey));
+            return admin;
+        }
     }
 
-    public double getCost(ParkingSpotType parkingSpotType) {
-        return hourlyCosts.get(parkingSpotType);
+    // Returns the removed admin, null if there was no admin with that id
+    public Admin removeAdmin(String id) {
+        if (id == null)
+            return null;
+        synchronized (AdminRepository.class) {
+            IndexedAdmin removed = adminsById.remove(id);
+            if (removed == null)
+                return null;
+            if (removed.getEmailKey() != null)
+                adminsByEmail.remove(removed.getEmailKey(), removed.getAdmin());
+            if (removed.getUserNameKey() != null)
+                adminsByUserName.remove(removed.getUserNameKey(), removed.getAdmin());
+            return removed.getAdmin();
+        }
     }
-}
-
-/************************************************** Payment ***********************************************************/
-
-enum PaymentStatus {
-    SUCCESS, FAILED
-}
-
-@Getter
-class Payment {
-    private String id;
-    private String ticketId;
-    private double amount;
 
-    @Setter
-    private LocalDateTime initiatedDate;
-    @Setter
-    private LocalDateTime completedDate;
-    @Setter
-    private PaymentStatus paymentStatus;
+    public Admin getAdminByEmail(String email) {
+        String emailKey = normalize(email);
+        return emailKey == null ? null : adminsByEmail.get(emailKey);
+    }
 
-    public Payment(String id, String ticketId, double amount) {
-        this.id = id;
-        this.ticketId = ticketId;
-        this.amount = amount;
+    public Admin getAdminByUserName(String userName) {
+        String userNameKey = normalize(userName);
+        return userNameKey == null ? null : adminsByUserName.get(userNameKey);
     }
 
-    public void makePayment() {
-        this.initiatedDate = LocalDateTime.now();
-        this.paymentStatus = PaymentStatus.SUCCESS;
-        this.completedDate = LocalDateTime.now();
+    public Admin getAdminById(String id) {
+        IndexedAdmin indexedAdmin = id == null ? null : adminsById.get(id);
+        return indexedAdmin == null ? null : indexedAdmin.getAdmin();
     }
-}
 
-@Getter
-@AllArgsConstructor
-class PaymentPortal {
-    private String id;
+    public List<Admin> getAdmins() {
+        List<Admin> admins = new ArrayList<>(adminsById.size());
+        adminsById.values().forEach(indexedAdmin -> admins.add(indexedAdmin.getAdmin()));
+        return admins;
+    }
 
-    public void scanTicket(ParkingTicket parkingTicket) {
-        // ..........
+    // Trimmed & lower case, null when there is nothing to index
+    static String normalize(String login) {
+        if (login == null)
+            return null;
+        String key = login.trim().toLowerCase(Locale.ROOT);
+        return key.isEmpty() ? null : key;
     }
 
-    public void makePayment(ParkingTicket parkingTicket) {
-        // ..........
+    @Getter
+    @AllArgsConstructor
+    private static class IndexedAdmin {
+        private final Admin admin;
+        private final String emailKey; // Keys the admin was indexed under, the Account fields may change later
+        private final String userNameKey;
     }
 }
 
-/************************************************** Account ***********************************************************/
+/************************************************** Simulation *******************************************************/
 
 /*
-This uses Global Address Model. (As we are implementing a generic Parking Lot System Software that can be used anywhere)
+Traffic of one VehicleType for ParkingLotSimulator. Arrivals are Poisson with a rate per hour of the day (constant
+within an hour, so a morning peak or a stadium surge is just a few big hours). Stays are log-normal: most vehicles
+stay about medianDwellMinutes, dwellSigma (sigma of the log) sets how long the tail of long stays is.
 */
 @Getter
-@Setter
-class Address {
-    private String addressLine1;
-    private String addressLine2;
-    private String addressLine3;
-    private String street;
-    private String city;
-    private String state;
-    private String country;
-    private String pinCode;
-}
+class VehicleTrafficProfile {
+    private final VehicleType vehicleType;
+    private final double[] arrivalsPerHour; // Index is the local hour of the day
+    private final double medianDwellMinutes;
+    private final double dwellSigma;
+
+    public VehicleTrafficProfile(VehicleType vehicleType, double[] arrivalsPerHour, double medianDwellMinutes,
+                                 double dwellSigma) {
+        if (arrivalsPerHour.length != 24)
+            throw new IllegalArgumentException("Need 24 hourly arrival rates, got " + arrivalsPerHour.length);
+        this.vehicleType = vehicleType;
+        this.arrivalsPerHour = arrivalsPerHour.clone();
+        this.medianDwellMinutes = medianDwellMinutes;
+        this.dwellSigma = dwellSigma;
+    }
 
-/*
-Used only for Admin employ
-*/
-@Getter
-@Setter
-class PersonalInfo {
-    private String firstName;
-    private String lastName;
-    private String middleName;
-    private String initials;
-    private String dob;
-}
+    // Same rate all day, peaks (hour -> rate) on top
+    public static VehicleTrafficProfile of(VehicleType vehicleType, double arrivalsPerHour, double medianDwellMinutes,
+                                           double dwellSigma, double... peakHoursAndRates) {
+        double[] rates = new double[24];
+        Arrays.fill(rates, arrivalsPerHour);
+        for (int i = 0; i + 1 < peakHoursAndRates.length; i += 2)
+            rates[(int) peakHoursAndRates[i]] = peakHoursAndRates[i + 1];
+        return new VehicleTrafficProfile(vehicleType, rates, medianDwellMinutes, dwellSigma);
+    }
 
-class Person {
-}
+    public VehicleTrafficProfile scaled(double factor) {
+        double[] rates = arrivalsPerHour.clone();
+        for (int hour = 0; hour < rates.length; hour++)
+            rates[hour] *= factor;
+        return new VehicleTrafficProfile(vehicleType, rates, medianDwellMinutes, dwellSigma);
+    }
 
-/*
-Contact is for people working at parking lot Administration.
-But can be applied on User as well.
-Lets Say some user wanted to park their vehicle for a month, In that case wee need their Contact.
+    long dwellMillis(SplittableRandom random) {
+        double gaussian = gaussian(random);
+        return Math.max(1000, (long) (medianDwellMinutes * 60_000 * Math.exp(dwellSigma * gaussian)));
+    }
 
-*/
-@Getter
-@Setter
-class Contact {
-    private String phone;
-    private String email;
-    private Address address;
-    private PersonalInfo personalInfo;
+    private static double gaussian(SplittableRandom random) {
+        // Box-Muller, 1 - nextDouble() is never 0 so the log is finite
+        return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
 }
 
 /*
-Account can be for Admin, as well as Users.
-Lets Say some user wanted to park their vehicle for a month, In that case wee need their contact and other details as well.
+Discrete-event load simulator: replays a day (or a week) of traffic against the real EntrancePanel, ExitPanel &
+ParkingLot code, on a VirtualClockSource installed in the lot for the run. Nothing waits for real time, a simulated
+day of a busy lot takes seconds.
+Events are arrivals (one pending per VehicleTrafficProfile, the next one is drawn when it is taken) & departures
+(scheduled when a vehicle got a ticket), in a PriorityQueue ordered by time, departures first on a tie so the spot
+they free is seen by the arrivals of that instant.
+- threads == 1 : events run one by one on the calling thread, the clock is moved to each event. Fully reproducible
+                 for a seed.
+- threads > 1  : time goes in steps of stepMillis. Events of a step are spread round-robin over one gate (entrance +
+                 exit panel) per thread & run in parallel, the clock sits on the start of the step. That's the real
+                 gate contention, the rejections of a step can differ a little from run to run.
+Entry & exit latency are timed around the panel calls (real nanoseconds, not simulated time). Vehicles still parked
+at the end of the run leave at its end time (not counted as departures), so a second run starts from the same lot.
+The gate panels (sim-in-N, sim-out-N) are added to the lot by the first run & reused by the next ones.
+Run: java ParkingLotSimulator [scenario] [floors] [spotsPerType] [hours] [threads] [scale] [seed]
+scenarios: morning-peak, stadium-surge, long-stay. e.g. java ParkingLotSimulator morning-peak 10 2000 24 1,8 4
 */
-@Getter
-@Setter
-abstract class Account {
-    private String id;
-    private String email;
-    private String userName;
-    private String password;
-    private LocalDateTime lastAccessed;
-    private Contact contact;
-}
-
-class Admin extends Account {
-    ParkingLotRepository parkingLotRepository = new ParkingLotRepository();
-
-    /*
-    Addition is an idempotent operation.
-    Q. What is an idempotent operation?
-    A. An idempotent operation can be repeated an arbitrary number of times and the result will be the same as if it had been done only once.
-    In arithmetic, adding zero to a number is idempotent.
-    See: https://stackoverflow.com/questions/1077412/what-is-an-idempotent-operation
-    */
+class ParkingLotSimulator {
+    private static final long HOUR = 3_600_000;
+    private static final long DEFAULT_STEP_MILLIS = 1000;
+
+    private final ParkingLot parkingLot;
+    private final List<VehicleTrafficProfile> profiles;
+    private final int threads;
+    private final long seed;
+    private final long offsetMillis = TariffTable.systemOffset().getTotalSeconds() * 1000L;
+    private long vehicleSequence; // Plates SIM0, SIM1... unique across runs of this simulator
+    @Setter
+    private long stepMillis = DEFAULT_STEP_MILLIS;
 
-    public void addParkingFloor(ParkingFloor parkingFloor) {
-        // We are first checking that is the parkingFloor that we are trying to add is already present or not.
-        Optional<ParkingFloor> floor =
-                ParkingLot.INSTANCE.getParkingFloors().stream()
-                        .filter(pF -> pF.getFloorId().equalsIgnoreCase(parkingFloor.getFloorId()))
-                        .findFirst();
-
-        // In case parkingFloor already exists, we simply return here.
-        if (floor.isPresent())
-            return;
-        ParkingLot.INSTANCE.getParkingFloors().add(parkingFloor);
+    public ParkingLotSimulator(ParkingLot parkingLot, List<VehicleTrafficProfile> profiles, int threads, long seed) {
+        this.parkingLot = parkingLot;
+        this.profiles = new ArrayList<>(profiles);
+        this.threads = threads;
+        this.seed = seed;
     }
 
-    public void addParkingSpot(String parkingFloorId, ParkingSpot parkingSpot)
-            throws InvlaidParkingFloorException {
-
-        // parkingSpot can only be added in an existing parkingFloor, hence checking do we have the desired parkingFloor
-        Optional<ParkingFloor> floor =
-                ParkingLot.INSTANCE.getParkingFloors().stream()
-                        .filter(pF -> pF.getFloorId().equalsIgnoreCase(parkingFloorId))
-                        .findFirst();
-
-        // If parkingFloor not present we just through exception & tell to try again with correct Parking Floor ID
-        if (!floor.isPresent())
-            throw new InvlaidParkingFloorException("Invalid floor");
-
-        // We are first checking that is the ParkingSpot that we are trying to add is already present or not.
-        Optional<ParkingSpot> spot =
-                floor.get().getParkingSpots().get(parkingSpot.getParkingSpotType())
-                        .stream()
-                        .filter(pS -> pS.getParkingSpotId().equalsIgnoreCase(parkingSpot.getParkingSpotId()))
-                        .findFirst();
+    private static final class Event implements Comparable<Event> {
+        private final long atMillis;
+        private final long sequence; // Ties in the same order whatever the heap does
+        private final VehicleTrafficProfile profile; // Arrival
+        private final Vehicle vehicle; // Arrival
+        private final ParkingTicket parkingTicket; // Departure
+
+        Event(long atMillis, long sequence, VehicleTrafficProfile profile, Vehicle vehicle, ParkingTicket parkingTicket) {
+            this.atMillis = atMillis;
+            this.sequence = sequence;
+            this.profile = profile;
+            this.vehicle = vehicle;
+            this.parkingTicket = parkingTicket;
+        }
 
-        // In case ParkingSpot already exists, we simply return here.
-        if (spot.isPresent())
-            return;
+        boolean isDeparture() {
+            return parkingTicket != null;
+        }
 
-        floor.get().getParkingSpots().get(parkingSpot.getParkingSpotType())
-                .addLast(parkingSpot);
+        @Override
+        public int compareTo(Event other) {
+            if (atMillis != other.atMillis)
+                return Long.compare(atMillis, other.atMillis);
+            if (isDeparture() != other.isDeparture())
+                return isDeparture() ? -1 : 1;
+            return Long.compare(sequence, other.sequence);
+        }
     }
 
-    // EntrancePanel is at a parking lot level and not at Floor level
-    public void addEntrancePanel(EntrancePanel entrancePanel) {
-
-        // We are first checking that is the EntrancePanel that we are trying to add is already present or not.
-        Optional<EntrancePanel> panel =
-                ParkingLot.INSTANCE.getEntrancePanels().stream()
-                        .filter(eP -> eP.getId().equalsIgnoreCase(entrancePanel.getId())).findFirst();
+    // One per thread, like the gates of ParkingLotBenchmark (Code/parking-lot-jmh). The random stream draws the stays
+    // of the vehicles it let in.
+    private final class Gate {
+        private final EntrancePanel entrancePanel;
+        private final ExitPanel exitPanel;
+        private final SplittableRandom random;
+        private final List<Event> departures = new ArrayList<>();
+
+        Gate(int id, SplittableRandom random) {
+            this.entrancePanel = entrancePanel("sim-in-" + id);
+            this.exitPanel = exitPanel("sim-out-" + id);
+            this.random = random;
+        }
 
-        // In case EntrancePanel already exists, we simply return here.
-        if (panel.isPresent())
-            return;
+        void run(Event event, long nowMillis, SimulationStats stats) {
+            long start = System.nanoTime();
+            if (event.isDeparture()) {
+                exitPanel.scanAndVacate(event.parkingTicket);
+                stats.exitLatency.record(System.nanoTime() - start);
+                stats.departures.increment();
+                return;
+            }
+            ParkingTicket parkingTicket = entrancePanel.getParkingTicket(event.vehicle);
+            stats.entryLatency.record(System.nanoTime() - start);
+            int type = event.vehicle.getType().ordinal();
+            stats.arrived.incrementAndGet(type);
+            if (parkingTicket == null) {
+                stats.rejected.incrementAndGet(type);
+                return;
+            }
+            departures.add(new Event(nowMillis + event.profile.dwellMillis(random), 0, null, null, parkingTicket));
+        }
+    }
 
-        ParkingLot.INSTANCE.getEntrancePanels().add(entrancePanel);
+    // Panel of an earlier run when the lot has it already (addEntrancePanel() is idempotent & returns false)
+    private EntrancePanel entrancePanel(String id) {
+        EntrancePanel entrancePanel = new EntrancePanel(id);
+        if (parkingLot.addEntrancePanel(entrancePanel))
+            return entrancePanel;
+        return parkingLot.getEntrancePanels().stream().filter(eP -> eP.getId().equalsIgnoreCase(id)).findFirst()
+                .orElseThrow();
     }
 
-    // ExitPanel is at a parking lot level and not at Floor level
-    public void addExitPanel(ExitPanel exitPanel) {
+    private ExitPanel exitPanel(String id) {
+        ExitPanel exitPanel = new ExitPanel(id);
+        if (parkingLot.addExitPanel(exitPanel))
+            return exitPanel;
+        return parkingLot.getExitPanels().stream().filter(eP -> eP.getId().equalsIgnoreCase(id)).findFirst()
+                .orElseThrow();
+    }
 
-        // We are first checking that is the ExitPanel that we are trying to add is already present or not.
-        Optional<ExitPanel> panel =
-                ParkingLot.INSTANCE.getExitPanels().stream()
-                        .filter(eP -> eP.getId().equalsIgnoreCase(exitPanel.getId())).findFirst();
+    private static final class SimulationStats {
+        private final AtomicLongArray arrived = new AtomicLongArray(VehicleType.values().length);
+        private final AtomicLongArray rejected = new AtomicLongArray(VehicleType.values().length);
+        private final LongAdder departures = new LongAdder();
+        private final LatencyHistogram entryLatency = new LatencyHistogram();
+        private final LatencyHistogram exitLatency = new LatencyHistogram();
+        private int peakOccupancy;
+    }
 
-        // In case ExitPanel already exists, we simply return here.
-        if (panel.isPresent())
-            return;
+    public SimulationReport run(long startMillis, long durationMillis) throws InterruptedException {
+        VirtualClockSource clock = new VirtualClockSource(startMillis);
+        ClockSource previousClock = parkingLot.getClockSource();
+        parkingLot.setClockSource(clock);
+        SplittableRandom random = new SplittableRandom(seed);
+        Gate[] gates = new Gate[threads];
+        for (int t = 0; t < threads; t++)
+            gates[t] = new Gate(t, random.split());
+        ExecutorService workers = threads == 1 ? null : Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "parking-simulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        PriorityQueue<Event> events = new PriorityQueue<>();
+        for (VehicleTrafficProfile profile : profiles)
+            scheduleArrival(events, profile, startMillis, random);
+        long endMillis = startMillis + durationMillis;
+        SimulationStats stats = new SimulationStats();
+        long wallStart = System.nanoTime();
+        try {
+            if (workers == null)
+                runSequential(events, clock, endMillis, random, gates[0], stats);
+            else
+                runInSteps(events, clock, endMillis, random, gates, workers, stats);
+        } finally {
+            if (workers != null)
+                workers.shutdownNow();
+            clock.advanceTo(endMillis);
+            for (Event event : events)
+                if (event.isDeparture())
+                    gates[0].exitPanel.scanAndVacate(event.parkingTicket);
+            parkingLot.setClockSource(previousClock);
+        }
+        return new SimulationReport(durationMillis, System.nanoTime() - wallStart, toArray(stats.arrived),
+                toArray(stats.rejected), stats.departures.sum(), stats.peakOccupancy, stats.entryLatency,
+                stats.exitLatency);
+    }
 
-        ParkingLot.INSTANCE.getExitPanels().add(exitPanel);
+    private void runSequential(PriorityQueue<Event> events, VirtualClockSource clock, long endMillis,
+                               SplittableRandom random, Gate gate, SimulationStats stats) {
+        while (!events.isEmpty() && events.peek().atMillis < endMillis) { // Later departures stay queued, see run()
+            Event event = events.poll();
+            clock.advanceTo(event.atMillis);
+            if (!event.isDeparture())
+                scheduleArrival(events, event.profile, event.atMillis, random);
+            gate.run(event, event.atMillis, stats);
+            for (Event departure : gate.departures)
+                events.add(departure);
+            gate.departures.clear();
+            stats.peakOccupancy = Math.max(stats.peakOccupancy, parkingLot.getOccupancy().getTotalOccupied());
+        }
     }
-}
 
-/************************************************** Exceptions *********************************************************/
+    private void runInSteps(PriorityQueue<Event> events, VirtualClockSource clock, long endMillis,
+                            SplittableRandom random, Gate[] gates, ExecutorService workers,
+                            SimulationStats stats) throws InterruptedException {
+        List<Event> step = new ArrayList<>();
+        List<Callable<Void>> tasks = new ArrayList<>(gates.length);
+        for (long stepStart = clock.currentTimeMillis(); stepStart < endMillis && !events.isEmpty();
+             stepStart += stepMillis) {
+            long stepEnd = Math.min(stepStart + stepMillis, endMillis);
+            step.clear();
+            while (!events.isEmpty() && events.peek().atMillis < stepEnd) {
+                Event event = events.poll();
+                if (!event.isDeparture())
+                    scheduleArrival(events, event.profile, event.atMillis, random);
+                step.add(event);
+            }
+            if (step.isEmpty())
+                continue;
+            clock.advanceTo(stepStart);
+            long now = stepStart;
+            tasks.clear();
+            for (int t = 0; t < gates.length; t++) {
+                Gate gate = gates[t];
+                int first = t;
+                tasks.add(() -> {
+                    for (int i = first; i < step.size(); i += gates.length)
+                        gate.run(step.get(i), now, stats);
+                    return null;
+                });
+            }
+            for (Future<Void> done : workers.invokeAll(tasks))
+                try {
+                    done.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Simulation step failed", e.getCause());
+                }
+            for (Gate gate : gates) {
+                // A stay shorter than the step ends in the next step, not in this one
+                for (Event departure : gate.departures)
+                    events.add(departure.atMillis >= stepEnd ? departure
+                            : new Event(stepEnd, 0, null, null, departure.parkingTicket));
+                gate.departures.clear();
+            }
+            stats.peakOccupancy = Math.max(stats.peakOccupancy, parkingLot.getOccupancy().getTotalOccupied());
+        }
+    }
 
-class InvalidParkingLotException extends Exception {
-    public InvalidParkingLotException(String message) {
-        super(message);
+    /*
+    Next arrival of a profile after fromMillis. Piecewise constant rate: draw an exponential gap with the rate of the
+    current hour, if it goes past the end of the hour start again from there with the next hour's rate (memoryless,
+    so that's exact). An hour with no traffic is skipped.
+    */
+    private void scheduleArrival(PriorityQueue<Event> events, VehicleTrafficProfile profile, long fromMillis,
+                                 SplittableRandom random) {
+        long at = fromMillis;
+        for (int emptyHours = 0; emptyHours <= 24; ) {
+            long hourEnd = (Math.floorDiv(at + offsetMillis, HOUR) + 1) * HOUR - offsetMillis;
+            double perHour = profile.getArrivalsPerHour()[(int) Math.floorMod(Math.floorDiv(at + offsetMillis, HOUR), 24L)];
+            if (perHour <= 0) {
+                at = hourEnd;
+                emptyHours++;
+                continue;
+            }
+            long gap = (long) (-Math.log(1 - random.nextDouble()) / perHour * HOUR);
+            if (at + gap < hourEnd) {
+                long id = vehicleSequence++;
+                events.add(new Event(at + gap, id, profile, newVehicle(profile.getVehicleType(), "SIM" + id), null));
+                return;
+            }
+            at = hourEnd;
+            emptyHours = 0;
+        }
+        // No traffic at any hour of the day, this profile never arrives
     }
-}
 
-class InvlaidParkingFloorException extends Exception {
-    public InvlaidParkingFloorException(String message) {
-        super(message);
+    static Vehicle newVehicle(VehicleType vehicleType, String licenseNumber) {
+        switch (vehicleType) {
+            case TRUCK:
+                return new Truck(licenseNumber);
+            case ELECTRIC:
+                return new Electric(licenseNumber);
+            case VAN:
+                return new Van(licenseNumber);
+            case MOTORBIKE:
+                return new Moterbike(licenseNumber);
+            default:
+                return new Car(licenseNumber);
+        }
     }
-}
 
-/************************************************** Repository *********************************************************/
+    private static long[] toArray(AtomicLongArray counts) {
+        long[] values = new long[counts.length()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = counts.get(i);
+        return values;
+    }
 
-class ParkingLotRepository {
-    public static Map<String, ParkingLot> parkingLotMap = new HashMap<>();
-    public static List<ParkingLot> parkingLots = new ArrayList<>();
+    /*
+    Named traffic mixes, rates for a lot of a few thousand spots, scale multiplies every arrival rate.
+    - morning-peak  : commuters in at 7-9 & staying the working day, short stay vans & trucks all day
+    - stadium-surge : quiet lot, 3 hours of fans arriving before an evening game, everyone leaves after ~3.5 hours
+    - long-stay     : airport style, flat arrivals, stays of days with a long tail, some drop-off short stays
+    */
+    public static List<VehicleTrafficProfile> scenario(String name, double scale) {
+        List<VehicleTrafficProfile> profiles;
+        switch (name) {
+            case "morning-peak":
+                profiles = Arrays.asList(
+                        VehicleTrafficProfile.of(VehicleType.CAR, 150, 480, 0.4, 7, 2500, 8, 4000, 9, 2000),
+                        VehicleTrafficProfile.of(VehicleType.MOTORBIKE, 50, 480, 0.4, 7, 800, 8, 1200, 9, 600),
+                        VehicleTrafficProfile.of(VehicleType.VAN, 60, 45, 0.6),
+                        VehicleTrafficProfile.of(VehicleType.TRUCK, 20, 60, 0.6),
+                        VehicleTrafficProfile.of(VehicleType.ELECTRIC, 20, 240, 0.5, 8, 300));
+                break;
+            case "stadium-surge":
+                profiles = Arrays.asList(
+                        VehicleTrafficProfile.of(VehicleType.CAR, 50, 210, 0.15, 16, 3000, 17, 6000, 18, 4000),
+                        VehicleTrafficProfile.of(VehicleType.MOTORBIKE, 20, 210, 0.15, 16, 800, 17, 1500, 18, 1000),
+                        VehicleTrafficProfile.of(VehicleType.ELECTRIC, 5, 210, 0.15, 17, 400));
+                break;
+            case "long-stay":
+                profiles = Arrays.asList(
+                        VehicleTrafficProfile.of(VehicleType.CAR, 300, 3 * 24 * 60, 0.8),
+                        VehicleTrafficProfile.of(VehicleType.CAR, 400, 20, 0.5),
+                        VehicleTrafficProfile.of(VehicleType.ELECTRIC, 30, 2 * 24 * 60, 0.8),
+                        VehicleTrafficProfile.of(VehicleType.VAN, 20, 24 * 60, 1.0));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scenario " + name);
+        }
+        List<VehicleTrafficProfile> scaled = new ArrayList<>(profiles.size());
+        for (VehicleTrafficProfile profile : profiles)
+            scaled.add(profile.scaled(scale));
+        return scaled;
+    }
 
+    public static void main(String[] args) throws InterruptedException {
+        String scenario = args.length > 0 ? args[0] : "morning-peak";
+        int floors = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int spotsPerType = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        long hours = args.length > 3 ? Long.parseLong(args[3]) : 24;
+        int[] threadCounts = Arrays.stream((args.length > 4 ? args[4] : "1,8").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        double scale = args.length > 5 ? Double.parseDouble(args[5]) : 1;
+        long seed = args.length > 6 ? Long.parseLong(args[6]) : 42;
+
+        // Simulated days start at local midnight, so the hourly rates line up with the hours of the day
+        long offsetMillis = TariffTable.systemOffset().getTotalSeconds() * 1000L;
+        long midnight = Math.floorDiv(System.currentTimeMillis() + offsetMillis, 24 * HOUR) * 24 * HOUR - offsetMillis;
+        for (int threads : threadCounts) {
+            ParkingLot parkingLot = buildLot(floors, spotsPerType);
+            SimulationReport report = new ParkingLotSimulator(parkingLot, scenario(scenario, scale), threads, seed)
+                    .run(midnight, hours * HOUR);
+            System.out.println(scenario + " floors=" + floors + " spots/type=" + spotsPerType + " threads=" + threads);
+            System.out.println(report);
+        }
+    }
 
-    public ParkingLot addParkingLot(ParkingLot parkingLot) {
-        parkingLotMap.putIfAbsent(parkingLot.getParkingLotId(), parkingLot);
-        parkingLots.add(parkingLot);
+    private static ParkingLot buildLot(int floors, int spotsPerType) {
+        ParkingLot parkingLot = new ParkingLot();
+        for (int f = 0; f < floors; f++) {
+            ParkingFloor parkingFloor = new ParkingFloor("F" + f);
+            for (ParkingSpotType parkingSpotType : ParkingSpotType.values())
+                for (int i = 0; i < spotsPerType; i++)
+                    parkingFloor.addSpot(ParkingSpot.of("F" + f + "-" + parkingSpotType + "-" + i, parkingSpotType));
+            parkingLot.addParkingFloor(parkingFloor);
+        }
         return parkingLot;
     }
+}
 
-    public ParkingLot getParkingLot(String parkingLotId) {
-        return parkingLotMap.get(parkingLotId);
+/*
+Result of one ParkingLotSimulator run. Throughput is gate operations (entries + exits) per second of real time,
+latencies are in nanoseconds.
+*/
+@Getter
+@AllArgsConstructor
+class SimulationReport {
+    private final long simulatedMillis;
+    private final long wallNanos;
+    private final long[] arrivedByType; // Index is VehicleType.ordinal()
+    private final long[] rejectedByType;
+    private final long departures;
+    private final int peakOccupancy;
+    private final LatencyHistogram entryLatency;
+    private final LatencyHistogram exitLatency;
+
+    public long getArrived() {
+        return Arrays.stream(arrivedByType).sum();
     }
 
-    public ParkingFloor addParkingFloor(String parkingLotId, ParkingFloor parkingFloor)
-            throws InvalidParkingLotException {
-        ParkingLot parkingLot = parkingLotMap.get(parkingLotId);
-        if (parkingLot == null)
-            throw new InvalidParkingLotException("Invalid parking lot");
-
-        //Idempotency
-        Optional<ParkingFloor> floor = parkingLot.getParkingFloors().stream()
-                .filter(pFloor -> pFloor.getFloorId()
-                        .equalsIgnoreCase(parkingFloor.getFloorId())).findFirst();
-
-        if (floor.isPresent())
-            return floor.get();
-
-        parkingLot.getParkingFloors().add(parkingFloor);
-        return parkingFloor;
+    public long getRejected() {
+        return Arrays.stream(rejectedByType).sum();
     }
 
-    public ParkingSpot addParkingSpot(String parkingLotId, String parkingFloorId, ParkingSpot parkingSpot)
-            throws InvalidParkingLotException, InvlaidParkingFloorException {
-        ParkingLot parkingLot = parkingLotMap.get(parkingLotId);
-        if (parkingLot == null)
-            throw new InvalidParkingLotException("Invalid parking lot");
-        Optional<ParkingFloor> floor = parkingLot.getParkingFloors().stream()
-                .filter(pFloor -> pFloor.getFloorId()
-                        .equalsIgnoreCase(parkingFloorId)).findFirst();
-        if (!floor.isPresent()) {
-            throw new InvlaidParkingFloorException("Invalid parking floor");
-        }
-        Optional<ParkingSpot> spot =
-                floor.get().getParkingSpots().get(parkingSpot.getParkingSpotType())
-                        .stream().filter(pSpot ->
-                        pSpot.getParkingSpotId()
-                                .equalsIgnoreCase(parkingSpot.getParkingSpotId())).findFirst();
-        if (spot.isPresent())
-            return spot.get();
+    public double getRejectionRate() {
+        long arrived = getArrived();
+        return arrived == 0 ? 0 : (double) getRejected() / arrived;
+    }
 
-        floor.get().getParkingSpots().get(parkingSpot.getParkingSpotType()).add(parkingSpot);
-        return parkingSpot;
+    public double getThroughput() {
+        return wallNanos == 0 ? 0 : (getArrived() + departures) * 1e9 / wallNanos;
     }
 
-    public EntrancePanel addEntryPanel(String parkingLotId, EntrancePanel entrancePanel)
-            throws InvalidParkingLotException {
-        ParkingLot parkingLot = parkingLotMap.get(parkingLotId);
-        if (parkingLot == null)
-            throw new InvalidParkingLotException("Invalid parking lot");
-        Optional<EntrancePanel> ePanel =
-                parkingLotMap.get(parkingLotId)
-                        .getEntrancePanels().stream().filter(ep ->
-                        ep.getId().equalsIgnoreCase(entrancePanel.getId())).findFirst();
-        if (ePanel.isPresent())
-            return entrancePanel;
-        parkingLotMap.get(parkingLotId)
-                .getEntrancePanels().add(entrancePanel);
-        return entrancePanel;
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(String.format(
+                "simulated=%.1fh wall=%.2fs arrived=%d rejected=%d (%.2f%%) departed=%d peak=%d ops/s=%.0f%n",
+                simulatedMillis / 3_600_000.0, wallNanos / 1e9, getArrived(), getRejected(), getRejectionRate() * 100,
+                departures, peakOccupancy, getThroughput()));
+        for (VehicleType vehicleType : VehicleType.values())
+            if (arrivedByType[vehicleType.ordinal()] > 0)
+                text.append(String.format("  %-9s arrived=%d rejected=%d%n", vehicleType,
+                        arrivedByType[vehicleType.ordinal()], rejectedByType[vehicleType.ordinal()]));
+        appendLatency(text, "entry", entryLatency);
+        appendLatency(text, "exit", exitLatency);
+        return text.toString().trim();
     }
 
-    public ExitPanel addExitPanel(String parkingLotId, ExitPanel exitPanel)
-            throws InvalidParkingLotException {
-        ParkingLot parkingLot = parkingLotMap.get(parkingLotId);
-        if (parkingLot == null)
-            throw new InvalidParkingLotException("Invalid parking lot");
-        Optional<EntrancePanel> ePanel =
-                parkingLotMap.get(parkingLotId)
-                        .getEntrancePanels().stream().filter(ep ->
-                        ep.getId().equalsIgnoreCase(exitPanel.getId())).findFirst();
-        if (ePanel.isPresent())
-            return exitPanel;
-        parkingLotMap.get(parkingLotId)
-                .getExitPanels().add(exitPanel);
-        return exitPanel;
+    private static void appendLatency(StringBuilder text, String name, LatencyHistogram latency) {
+        text.append(String.format("  %-5s ns p50=%d p99=%d p99.9=%d max=%d%n", name, latency.getValueAtPercentile(50),
+                latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9), latency.getMax()));
     }
 }
 
-class AdminRepository {
-    public static Map<String, Admin> adminMap = new HashMap<>();
-    public static List<Admin> admins = new ArrayList<>();
+/************************************************** Benchmarks *********************************************************/
 
-    public Admin addAdmin(Admin admin) {
-        adminMap.putIfAbsent(admin.getId(), admin);
-        admins.add(admin);
-        return admin;
+/*
+Compares DequeAllocationStrategy & NearestEntranceAllocationStrategy on a single floor.
+Every thread is a panel doing claim + release in a loop, from one of the 4 entrances.
+Reports throughput, average distance of the claimed spot from the entrance (what the driver feels), and for the heap
+strategy how many claims had to wait for the lock (contention).
+Run: java AllocationStrategyBenchmark [spotsPerType] [secondsPerRun]
+*/
+class AllocationStrategyBenchmark {
+    private static final List<String> ENTRANCES = Arrays.asList("E1", "E2", "E3", "E4");
+
+    public static void main(String[] args) throws InterruptedException {
+        int spotsPerType = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long runMillis = (args.length > 1 ? Long.parseLong(args[1]) : 1) * 1000;
+        for (int threads : new int[]{1, 4, 16}) {
+            run("deque", new DequeAllocationStrategy(), spotsPerType, threads, runMillis);
+            NearestEntranceAllocationStrategy heapStrategy = new NearestEntranceAllocationStrategy(ENTRANCES);
+            run("nearest-heap", heapStrategy, spotsPerType, threads, runMillis);
+            System.out.println("    contended claims: " + heapStrategy.getContendedClaims().sum());
+        }
     }
 
-    public Admin getAdminByEmail(String email) {
-        Optional<Admin> admin =
-                admins.stream().filter(adm -> adm.getEmail().equalsIgnoreCase(email)).findFirst();
+    private static void run(String name, SpotAllocationStrategy strategy, int spotsPerType, int threads, long runMillis)
+            throws InterruptedException {
+        Random random = new Random(42);
+        for (int i = 0; i < spotsPerType; i++) {
+            ParkingSpot parkingSpot = new CompactParkingSpot("c" + i);
+            for (String entranceId : ENTRANCES)
+                parkingSpot.setDistanceFromEntrance(entranceId, random.nextInt(1000));
+            strategy.addSpot(parkingSpot);
+        }
+
+        LongAdder operations = new LongAdder();
+        LongAdder totalDistance = new LongAdder();
+        long deadline = System.currentTimeMillis() + runMillis;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String entranceId = ENTRANCES.get(t % ENTRANCES.size());
+            Thread worker = new Thread(() -> {
+                while (System.currentTimeMillis() < deadline) {
+                    ParkingSpot parkingSpot = strategy.claim(ParkingSpotType.COMPACT, entranceId);
+                    if (parkingSpot == null)
+                        continue;
+                    totalDistance.add(parkingSpot.getDistanceFromEntrance(entranceId));
+                    strategy.release(parkingSpot);
+                    operations.increment();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers)
+            worker.join();
 
-        return admin.isPresent() ? admin.get() : null;
+        long ops = operations.sum();
+        System.out.printf("%-12s threads=%-3d ops/s=%-12d ns/op=%-8d avg distance=%d%n", name, threads,
+                ops * 1000 / runMillis, ops == 0 ? 0 : runMillis * 1_000_000 * threads / ops,
+                ops == 0 ? 0 : totalDistance.sum() / ops);
     }
+}
 
-    public Admin getAdminById(String id) {
-        return adminMap.get(id);
+/*
+Throughput of PaymentPipeline against StubPaymentGateway with real-world latency (200-800 ms per call).
+Submits all payments from one thread, the way exit gates would, & waits for every future.
+Reports payments/s, retries & failures, and that charges never exceed the number of tickets.
+Run: java PaymentPipelineBenchmark [payments] [maxInFlight] [failureRate]
+*/
+class PaymentPipelineBenchmark {
+    public static void main(String[] args) {
+        int payments = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int maxInFlight = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        double failureRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+
+        StubPaymentGateway gateway = new StubPaymentGateway(200, 800, failureRate);
+        ParkingLot parkingLot = new ParkingLot();
+        PaymentPipeline pipeline = new PaymentPipeline(parkingLot, gateway, maxInFlight, 3, 10);
+        PaymentPortal paymentPortal = new PaymentPortal("bench", parkingLot, pipeline);
+        IdGenerator ticketIds = SnowflakeIdGenerator.forNextNode();
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Payment>> futures = new ArrayList<>(payments);
+        for (int i = 0; i < payments; i++) {
+            ParkingTicket parkingTicket = new ParkingTicket();
+            parkingTicket.setTicketId(ticketIds.nextId());
+            parkingTicket.setCharges(20);
+            futures.add(paymentPortal.submitPayment(parkingTicket));
+        }
+        long submitNanos = System.nanoTime() - start;
+        long failed = futures.stream().map(CompletableFuture::join)
+                .filter(payment -> payment.getPaymentStatus() == PaymentStatus.FAILED).count();
+        long elapsed = System.nanoTime() - start;
+        pipeline.close();
+
+        System.out.printf("payments=%d maxInFlight=%d submit ns/op=%d payments/s=%d%n", payments, maxInFlight,
+                submitNanos / payments, payments * 1_000_000_000L / elapsed);
+        System.out.printf("retries=%d failed=%d charges=%d deduplicated charges=%d settle batches=%d%n",
+                parkingLot.getMetrics().getPaymentRetries().sum(), failed, gateway.getCharges().sum(), gateway.getDeduplicatedCharges().sum(),
+                gateway.getSettledBatches().sum());
     }
 }
 
 /*********************************************** ParkinglotApplication ************************************************/
 
 class ParkinglotApplication {
-    public static void main(String[] args) throws InvlaidParkingFloorException {
-        ParkingLot parkingLot = ParkingLot.INSTANCE;
+    public static void main(String[] args) throws InvlaidParkingFloorException, InterruptedException {
+        ParkingLot parkingLot = new ParkingLot();
+        new ParkingLotRepository().addParkingLot(parkingLot);
 
         Address address = new Address();
         address.setAddressLine1("Ram parking Complex");
@@ -717,7 +5774,7 @@ class ParkinglotApplication {
 
         parkingLot.setAddress(address);
         //Admin tests
-        Account adminAccount = new Admin();
+        Account adminAccount = new Admin(parkingLot);
         //Admin Case 1 - should be able to add parking floor case
         ((Admin) adminAccount).addParkingFloor(new ParkingFloor("1"));
         //Admin Case 2 - should be able to add parking floor case
@@ -744,36 +5801,37 @@ class ParkinglotApplication {
         ((Admin) adminAccount).addParkingSpot(floorId, carSpot2);
 
         // Test case 1 - check for availability of parking lot - TRUE
-        System.out.println(ParkingLot.INSTANCE.canPark(VehicleType.CAR));
+        System.out.println(parkingLot.canPark(VehicleType.CAR));
 
         // Test case 2 - check for availability of parking lot - FALSE
-        System.out.println(ParkingLot.INSTANCE.canPark(VehicleType.MOTORBIKE));
+        System.out.println(parkingLot.canPark(VehicleType.MOTORBIKE));
 
         // Test case 3 - check for availability of parking lot - FALSE
-        System.out.println(ParkingLot.INSTANCE.canPark(VehicleType.ELECTRIC));
+        System.out.println(parkingLot.canPark(VehicleType.ELECTRIC));
 
         // TEST case 4 - Check if full
-        System.out.println(ParkingLot.INSTANCE.isFull());
+        System.out.println(parkingLot.isFull());
 
         // Test case 5 - get parking spot
         Vehicle vehicle = new Car("KA05MR2311");
-        ParkingSpot availableSpot = ParkingLot.INSTANCE.getParkingSpot(vehicle.getType());
+        ParkingSpot availableSpot = parkingLot.getParkingSpot(vehicle.getType());
         System.out.println(availableSpot.getParkingSpotType());
         System.out.println(availableSpot.getParkingSpotId());
 
         // Test case 6 - should not be able to get spot
         Vehicle van = new Van("KA01MR7804");
-        ParkingSpot vanSpot = ParkingLot.INSTANCE.getParkingSpot(van.getType());
+        ParkingSpot vanSpot = parkingLot.getParkingSpot(van.getType());
         System.out.println(null == vanSpot);
 
         //Test case 7 - Entrance Panel - 1
-        System.out.println(ParkingLot.INSTANCE.getEntrancePanels().size());
+        System.out.println(parkingLot.getEntrancePanels().size());
 
         // Test case - 8 - Should be able to get parking ticket
         ParkingTicket parkingTicket = entrancePanel.getParkingTicket(vehicle);
         System.out.println(parkingTicket.getAllocatedSpotId());
 
-        ((Admin) adminAccount).addParkingSpot(floorId, carSpot1);
+        // Spot taken directly in Test case 5 is given back
+        parkingLot.vacateParkingSpot(availableSpot.getParkingSpotId());
         // Test case - 9 - Should be able to get parking ticket
         Vehicle car = new Car("KA02MR6355");
         ParkingTicket parkingTicket1 = entrancePanel.getParkingTicket(car);
@@ -806,7 +5864,7 @@ class ParkinglotApplication {
         System.out.println(parkingTicket.getCharges() > 0);
 
         //Test case 16 - Now should be able to park car
-        System.out.println(ParkingLot.INSTANCE.canPark(VehicleType.CAR));
+        System.out.println(parkingLot.canPark(VehicleType.CAR));
 
         //Test case 17 - Should be able to vacate parked vehicle
         parkingTicket1 = exitPanel.scanAndVacate(parkingTicket1);
@@ -814,19 +5872,126 @@ class ParkinglotApplication {
         System.out.println(parkingTicket1.getCharges() > 0);
 
         //Test case 18 - check for slots count
-        System.out.println(ParkingLot.INSTANCE.getParkingFloors()
-                .get(0).getParkingSpots().get(ParkingSpotType.COMPACT).size());
+        System.out.println(parkingLot.getParkingFloors()
+                .get(0).getFreeSpotCount(ParkingSpotType.COMPACT));
 
         //Test case 19 - Payment
-        Payment payment = new Payment(UUID.randomUUID().toString(),
-                parkingTicket1.getTicketNumber(), parkingTicket1.getCharges());
-        payment.makePayment();
+        PaymentPortal paymentPortal = new PaymentPortal("1", parkingLot);
+        Payment payment = paymentPortal.makePayment(parkingTicket1);
         System.out.println(payment.getPaymentStatus());
 
         //Test case 20 - vacate motorbike spot
         mtrTkt = exitPanel.scanAndVacate(mtrTkt);
-        System.out.println(ParkingLot.INSTANCE.getParkingFloors()
-                .get(0).getParkingSpots().get(ParkingSpotType.MOTORBIKE).size());
+        System.out.println(parkingLot.getParkingFloors()
+                .get(0).getFreeSpotCount(ParkingSpotType.MOTORBIKE));
         System.out.println(mtrTkt.getCharges());
+
+        //Test case 21 - batch of vehicles, 2 cars should get tickets, bike & 3rd car should not - [true, true, false, false]
+        List<TicketResult> batch = entrancePanel.getParkingTickets(Arrays.asList(new Car("KA01AB0001"),
+                new Car("KA01AB0002"), new Moterbike("KA01AB0003"), new Car("KA01AB0004")));
+        batch.forEach(result -> System.out.print(result.isSuccess() + " "));
+        System.out.println();
+
+        //Test case 22 - batch vacate of the issued tickets
+        List<ParkingTicket> issued = new ArrayList<>();
+        batch.stream().filter(TicketResult::isSuccess).forEach(result -> issued.add(result.getParkingTicket()));
+        System.out.println(exitPanel.scanAndVacate(issued).stream().allMatch(TicketResult::isSuccess));
+
+        //Test case 23 - swap in a tariff with a first hour rate of 50 for COMPACT, short stay should pay 50.0
+        Map<ParkingSpotType, TariffRule> rules = new EnumMap<>(ParkingSpotType.class);
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values())
+            rules.put(parkingSpotType, new TariffRule(new HourlyCost().getCost(parkingSpotType)));
+        rules.get(ParkingSpotType.COMPACT).setFirstHourRate(50.0);
+        parkingLot.getTariffEngine().swap(TariffTable.compile(rules, TariffTable.systemOffset()));
+        ParkingTicket shortStay = entrancePanel.getParkingTicket(new Car("KA01AB0005"));
+        System.out.println(exitPanel.scanAndVacate(shortStay).getCharges());
+
+        //Test case 24 - pay before exit: scan the active ticket (50.0 with the tariff above), then pay without blocking
+        ParkingTicket payBeforeExit = entrancePanel.getParkingTicket(new Car("KA01AB0006"));
+        System.out.println(paymentPortal.scanTicket(payBeforeExit));
+        System.out.println(paymentPortal.submitPayment(payBeforeExit).join().getPaymentStatus());
+
+        //Test case 25 - metrics: cars turned away in test cases 10 & 21 are counted as rejected - 2
+        Map<String, Long> metrics = parkingLot.getMetrics().collect();
+        System.out.println(metrics.get("entrance.rejected.CAR") + " " + (metrics.get("entrance.issue_ns.count") > 0));
+
+        //Test case 26 - reserve a spot for a monthly pass holder, their car gets a ticket for the held spot - c1 true
+        Reservation reservation = parkingLot.reserveParkingSpot(VehicleType.CAR, "PASS-42", 15, TimeUnit.MINUTES);
+        ParkingTicket reservedTicket = entrancePanel.getParkingTicket(new Car("KA01AB0007"),
+                reservation.getReservationId());
+        System.out.println(reservedTicket.getAllocatedSpotId() + " "
+                + (reservation.getStatus().get() == ReservationStatus.FULFILLED));
+
+        //Test case 27 - analytics: 1 arrival & 1 departure in the last minute, the stay was shorter than a minute - 1 1 0
+        exitPanel.scanAndVacate(reservedTicket);
+        ParkingAnalytics analytics = new ParkingAnalytics(parkingLot);
+        parkingLot.addListener(analytics);
+        exitPanel.scanAndVacate(entrancePanel.getParkingTicket(new Car("KA01AB0008")));
+        System.out.println(analytics.getArrivalsLastMinute() + " " + analytics.getDeparturesLastMinute() + " "
+                + analytics.getDwellSecondsAtPercentile(ParkingSpotType.COMPACT, 50) / 60);
+
+        //Test case 28 - lost ticket: found by plate whatever the spelling, charged 1 hour + lost ticket fee - true 120.0 null
+        Map<ParkingSpotType, TariffRule> lostTicketRules = new EnumMap<>(ParkingSpotType.class);
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            TariffRule rule = new TariffRule(new HourlyCost().getCost(parkingSpotType));
+            rule.setLostTicketFee(100.0);
+            lostTicketRules.put(parkingSpotType, rule);
+        }
+        parkingLot.getTariffEngine().swap(TariffTable.compile(lostTicketRules, TariffTable.systemOffset()));
+        ParkingTicket lostTicket = entrancePanel.getParkingTicket(new Car("KA 01 ab-0009"));
+        System.out.println((parkingLot.getActiveTicketByPlate("ka01ab0009") == lostTicket) + " "
+                + exitPanel.vacateLostTicket("KA01AB0009").getCharges() + " "
+                + exitPanel.scanPlateAndVacate("KA01AB0009"));
+
+        //Test case 29 - full lot: the waiting car gets the spot of the car that leaves, no polling - false true true
+        ParkingTicket lastSpotTicket = entrancePanel.getParkingTicket(new Car("KA01AB0010"));
+        CompletableFuture<ParkingTicket> waitingTicket =
+                entrancePanel.awaitParkingTicket(new Car("KA01AB0011"), 1, TimeUnit.MINUTES);
+        System.out.print(waitingTicket.isDone() + " ");
+        exitPanel.scanAndVacate(lastSpotTicket);
+        System.out.println(waitingTicket.isDone() + " "
+                + waitingTicket.join().getAllocatedSpotId().equals(lastSpotTicket.getAllocatedSpotId()));
+
+        //Test case 30 - floor is drained (no new cars) & removed once the last car left - false null true
+        ((Admin) adminAccount).addParkingFloor(new ParkingFloor("3"));
+        ((Admin) adminAccount).addParkingSpot("3", new CompactParkingSpot("c3"));
+        ParkingTicket drainedFloorTicket = entrancePanel.getParkingTicket(new Car("KA01AB0012"));
+        System.out.print(((Admin) adminAccount).removeParkingFloor("3") + " ");
+        System.out.print(entrancePanel.getParkingTicket(new Car("KA01AB0013")) + " ");
+        exitPanel.scanAndVacate(drainedFloorTicket);
+        System.out.println(((Admin) adminAccount).removeParkingFloor("3"));
+
+        //Test case 31 - entrance board is pushed the free counts, no polling - true true
+        int[] boardCounts = new int[ParkingSpotType.values().length];
+        try (FreeCountFeed feed = new FreeCountFeed(10, TimeUnit.MILLISECONDS)) {
+            parkingLot.subscribeFreeCounts(feed, (lotId, freeCounts) ->
+                    System.arraycopy(freeCounts, 0, boardCounts, 0, freeCounts.length));
+            Thread.sleep(100);
+            int motorbikeSpots = boardCounts[ParkingSpotType.MOTORBIKE.ordinal()];
+            ((Admin) adminAccount).addParkingSpot(floorId, new MotorbikeParkingSpot("b2"));
+            Thread.sleep(100);
+            System.out.print((boardCounts[ParkingSpotType.MOTORBIKE.ordinal()] == motorbikeSpots + 1) + " ");
+            entrancePanel.getParkingTicket(new Moterbike("KA01AB0014"));
+            Thread.sleep(100);
+            System.out.println(boardCounts[ParkingSpotType.MOTORBIKE.ordinal()] == motorbikeSpots);
+        }
+
+        //Test case 32 - admin found by email & user name in any case, an email is used by one admin only - true true
+        AdminRepository adminRepository = new AdminRepository();
+        adminAccount.setId("admin-1");
+        adminAccount.setEmail("Ops@Lot.com");
+        adminAccount.setUserName("ops");
+        Admin secondAdmin = new Admin(parkingLot);
+        secondAdmin.setId("admin-2");
+        secondAdmin.setEmail(" ops@lot.com");
+        try {
+            adminRepository.addAdmin((Admin) adminAccount);
+            System.out.print((adminRepository.getAdminByEmail("OPS@lot.com") == adminRepository.getAdminByUserName("Ops"))
+                    + " ");
+            adminRepository.addAdmin(secondAdmin);
+            System.out.println(false);
+        } catch (DuplicateAccountException e) {
+            System.out.println(adminRepository.getAdminById("admin-2") == null);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,273 @@
+package parkinglot;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+Baseline for the parking lot hot paths.
+Workloads:
+- floor      : ParkingFloor.getSpot() + vacateSpot() on a random floor
+- lot        : ParkingLot.getParkingSpot() + vacateParkingSpot()
+- enter-exit : EntrancePanel.getParkingTicket() + ExitPanel.scanAndVacate() of that ticket
+- mixed      : each thread is a gate that lets a vehicle in or one of its parked vehicles out, 50/50
+- enter-exit-leased, mixed-leased : the same with spot leasing on (SpotLeaseManager, blocks of LEASE_BLOCK_SIZE)
+Parameters: floors, spots per type on each floor, fill ratio (spots taken before measuring, they stay taken) and
+threads. Every thread has its own entrance & exit panel, like real gates.
+Thread count is a @Param & not JMH @Threads (annotation only, it can't be swept): the gates are threads of our own,
+one invocation is OPS_PER_INVOCATION steps split evenly between them. So the score is lot throughput (ops/s) for that
+many gates, the start & join of each round is in it but is small next to 4096 steps. rejected counts steps that found
+no spot (full lot), they are in the score too.
+Run: java -jar target/benchmarks.jar ParkingLotBenchmark -p workload=mixed -p floors=1,4 -p threads=1,8,64
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ParkingLotBenchmark {
+    static final int OPS_PER_INVOCATION = 4096; // Every thread count below divides it
+    private static final VehicleType[] VEHICLE_TYPES = {VehicleType.CAR, VehicleType.MOTORBIKE, VehicleType.TRUCK};
+    private static final int LEASE_BLOCK_SIZE = 32;
+
+    @Param({"floor", "lot", "enter-exit", "mixed", "enter-exit-leased", "mixed-leased"})
+    String workload;
+    @Param({"1", "4"})
+    int floors;
+    @Param({"1000"})
+    int spotsPerType;
+    @Param({"0", "0.9"})
+    double fillRatio;
+    @Param({"1", "4", "16", "64"})
+    int threads;
+
+    private ParkingLot parkingLot;
+    private Gate[] gates;
+    private ExecutorService gateThreads;
+    private List<Callable<Long>> rounds; // One per gate, returns the rejected steps
+
+    private enum Workload {
+        FLOOR("floor") {
+            boolean step(Gate gate) {
+                ParkingFloor parkingFloor = gate.nextFloor();
+                ParkingSpot parkingSpot = parkingFloor.getSpot(gate.nextVehicleType());
+                if (parkingSpot == null)
+                    return false;
+                parkingFloor.vacateSpot(parkingSpot.getParkingSpotId());
+                return true;
+            }
+        },
+        LOT("lot") {
+            boolean step(Gate gate) {
+                ParkingSpot parkingSpot = gate.parkingLot.getParkingSpot(gate.nextVehicleType());
+                if (parkingSpot == null)
+                    return false;
+                gate.parkingLot.vacateParkingSpot(parkingSpot.getParkingSpotId());
+                return true;
+            }
+        },
+        ENTER_EXIT("enter-exit") {
+            boolean step(Gate gate) {
+                ParkingTicket parkingTicket = gate.entrancePanel.getParkingTicket(gate.nextVehicle());
+                if (parkingTicket == null)
+                    return false;
+                gate.exitPanel.scanAndVacate(parkingTicket);
+                return true;
+            }
+        },
+        MIXED("mixed") {
+            boolean step(Gate gate) {
+                if (!gate.parked.isEmpty() && gate.random.nextBoolean()) {
+                    gate.exitPanel.scanAndVacate(gate.parked.poll());
+                    return true;
+                }
+                ParkingTicket parkingTicket = gate.entrancePanel.getParkingTicket(gate.nextVehicle());
+                if (parkingTicket == null)
+                    return false;
+                gate.parked.add(parkingTicket);
+                return true;
+            }
+        },
+        ENTER_EXIT_LEASED("enter-exit-leased", true) {
+            boolean step(Gate gate) {
+                return ENTER_EXIT.step(gate);
+            }
+        },
+        MIXED_LEASED("mixed-leased", true) {
+            boolean step(Gate gate) {
+                return MIXED.step(gate);
+            }
+        };
+
+        private final String name;
+        private final boolean leased;
+
+        Workload(String name) {
+            this(name, false);
+        }
+
+        Workload(String name, boolean leased) {
+            this.name = name;
+            this.leased = leased;
+        }
+
+        abstract boolean step(Gate gate);
+
+        static Workload of(String name) {
+            for (Workload workload : values())
+                if (workload.name.equals(name))
+                    return workload;
+            throw new IllegalArgumentException("Unknown workload " + name);
+        }
+    }
+
+    /*
+    One per thread, kept for the whole trial so that the panels & random streams are not rebuilt. A round runs on any
+    thread of the pool, but a gate is only ever in one round at a time (invokeAll() waits for all of them).
+    */
+    private static class Gate {
+        private final ParkingLot parkingLot;
+        private final EntrancePanel entrancePanel;
+        private final ExitPanel exitPanel;
+        private final Random random;
+        private final ArrayDeque<ParkingTicket> parked = new ArrayDeque<>();
+        private final String platePrefix;
+        private long vehicles;
+
+        Gate(ParkingLot parkingLot, int id) {
+            this.parkingLot = parkingLot;
+            this.entrancePanel = new EntrancePanel("bench-in-" + id);
+            this.exitPanel = new ExitPanel("bench-out-" + id);
+            this.random = new Random(id);
+            this.platePrefix = "G" + id + "-";
+            parkingLot.addEntrancePanel(entrancePanel);
+            parkingLot.addExitPanel(exitPanel);
+        }
+
+        VehicleType nextVehicleType() {
+            return VEHICLE_TYPES[random.nextInt(VEHICLE_TYPES.length)];
+        }
+
+        ParkingFloor nextFloor() {
+            return parkingLot.getParkingFloors().get(random.nextInt(parkingLot.getParkingFloors().size()));
+        }
+
+        Vehicle nextVehicle() {
+            String plate = platePrefix + vehicles++;
+            switch (nextVehicleType()) {
+                case MOTORBIKE:
+                    return new Moterbike(plate);
+                case TRUCK:
+                    return new Truck(plate);
+                default:
+                    return new Car(plate);
+            }
+        }
+
+        // Mixed workload leaves vehicles parked, they go out between iterations so every iteration starts alike
+        void drain() {
+            while (!parked.isEmpty())
+                exitPanel.scanAndVacate(parked.poll());
+        }
+    }
+
+    // Steps that found no spot, summed over the iteration (JMH prints it next to the score)
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Rejections {
+        public long rejected;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rejected = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (OPS_PER_INVOCATION % threads != 0)
+            throw new IllegalArgumentException("threads must divide " + OPS_PER_INVOCATION);
+        Workload steps = Workload.of(workload);
+        parkingLot = buildLot(floors, spotsPerType, fillRatio);
+        gates = new Gate[threads];
+        for (int t = 0; t < threads; t++)
+            gates[t] = new Gate(parkingLot, t);
+        if (steps.leased)
+            parkingLot.enableSpotLeasing(LEASE_BLOCK_SIZE, 1, TimeUnit.MILLISECONDS);
+
+        gateThreads = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "bench-gate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int stepsPerGate = OPS_PER_INVOCATION / threads;
+        rounds = new ArrayList<>(threads);
+        for (Gate gate : gates)
+            rounds.add(() -> {
+                long rejected = 0;
+                for (int i = 0; i < stepsPerGate; i++)
+                    if (!steps.step(gate))
+                        rejected++;
+                return rejected;
+            });
+    }
+
+    @TearDown(Level.Iteration)
+    public void drainGates() {
+        for (Gate gate : gates)
+            gate.drain();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        gateThreads.shutdownNow();
+        parkingLot.disableSpotLeasing();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS_PER_INVOCATION)
+    public void run(Rejections rejections) throws Exception {
+        for (Future<Long> round : gateThreads.invokeAll(rounds))
+            rejections.rejected += round.get();
+    }
+
+    private static ParkingLot buildLot(int floors, int spotsPerType, double fillRatio) {
+        ParkingLot parkingLot = new ParkingLot();
+        for (int f = 0; f < floors; f++) {
+            ParkingFloor parkingFloor = new ParkingFloor("F" + f);
+            for (VehicleType vehicleType : VEHICLE_TYPES) {
+                ParkingSpotType parkingSpotType = ParkingFloor.getSpotTypeForVehicle(vehicleType);
+                for (int i = 0; i < spotsPerType; i++)
+                    parkingFloor.addSpot(ParkingSpot.of("F" + f + "-" + parkingSpotType + "-" + i, parkingSpotType));
+            }
+            parkingLot.addParkingFloor(parkingFloor);
+            for (VehicleType vehicleType : VEHICLE_TYPES)
+                for (int i = 0; i < (int) (spotsPerType * fillRatio); i++)
+                    parkingFloor.getSpot(vehicleType);
+        }
+        return parkingLot;
+    }
+}